@@ -0,0 +1,212 @@
+package br.com.caelum.pm73.agendamento;
+
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.eventos.Assinatura;
+import br.com.caelum.pm73.eventos.Evento;
+import br.com.caelum.pm73.eventos.FilaDeEventos;
+
+/**
+ * Encerra os leiloes no segundo do seu prazo. Os prazos ficam numa
+ * {@link RodaDeTempo} e, a cada segundo, todos os leiloes vencidos sao
+ * encerrados com um unico UPDATE, sem carregar as entidades. O UPDATE confere
+ * o prazo gravado, entao um leilao prorrogado depois de entrar na roda nao e
+ * encerrado antes da hora.
+ *
+ * Leiloes criados, alterados, encerrados ou removidos pelo LeilaoDao depois da
+ * recuperacao chegam pela {@link FilaDeEventos} do banco e sao (re)agendados
+ * no inicio de cada segundo. Se a assinatura perder eventos, a roda e
+ * remontada do banco.
+ */
+public class AgendadorDeEncerramentos {
+
+	private static final Logger log = Logger.getLogger(AgendadorDeEncerramentos.class.getName());
+	private static final int EVENTOS_POR_SEGUNDO = 10000;
+
+	private final CriadorDeSessao criador;
+	private final Assinatura eventos;
+	// guardada pelo proprio agendador: recupera() troca a roda sem perder agendamentos concorrentes
+	private RodaDeTempo roda;
+	private long perdidos;
+	private ScheduledExecutorService relogio;
+
+	public AgendadorDeEncerramentos(CriadorDeSessao criador) {
+		this.criador = criador;
+		this.eventos = FilaDeEventos.de(criador.getSessionFactory()).assina();
+		this.roda = new RodaDeTempo(agora());
+	}
+
+	// remonta a roda a partir dos leiloes abertos que tem prazo, por exemplo depois de um restart
+	public synchronized void recupera() {
+		Session session = criador.getSession();
+		try {
+			Map<Integer, Calendar> pendentes = new LeilaoDao(session).pendentesDeEncerramento();
+
+			RodaDeTempo nova = new RodaDeTempo(agora());
+			for (Map.Entry<Integer, Calendar> pendente : pendentes.entrySet()) {
+				nova.agenda(pendente.getKey(), segundoDe(pendente.getValue()));
+			}
+			roda = nova;
+		} finally {
+			session.close();
+		}
+	}
+
+	public synchronized void agenda(Leilao leilao) {
+		if (leilao.getDataEncerramento() == null) {
+			roda.cancela(leilao.getId());
+		} else {
+			roda.agenda(leilao.getId(), segundoDe(leilao.getDataEncerramento()));
+		}
+	}
+
+	public synchronized void cancela(Leilao leilao) {
+		roda.cancela(leilao.getId());
+	}
+
+	public synchronized int getPendentes() {
+		return roda.getPendentes();
+	}
+
+	public void inicia() {
+		relogio = Executors.newSingleThreadScheduledExecutor();
+		long ateProximoSegundo = 1000 - System.currentTimeMillis() % 1000;
+		relogio.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					processa(agora());
+				} catch (RuntimeException e) {
+					// uma falha nao pode cancelar as proximas execucoes
+					log.log(Level.SEVERE, "falha ao encerrar leiloes vencidos", e);
+				}
+			}
+		}, ateProximoSegundo, 1000, TimeUnit.MILLISECONDS);
+	}
+
+	public void para() {
+		if (relogio != null) {
+			relogio.shutdown();
+		}
+	}
+
+	// devolve quantos leiloes foram encerrados ate o segundo informado
+	public int processa(long segundo) {
+		aplicaEventos();
+		List<Integer> vencidos = vencidosAte(segundo);
+		if (vencidos.isEmpty()) {
+			return 0;
+		}
+
+		// ultimo instante do segundo: o banco confere o prazo contra ele
+		Calendar agora = Calendar.getInstance();
+		agora.setTimeInMillis(TimeUnit.SECONDS.toMillis(segundo + 1) - 1);
+
+		int encerrados;
+		Session session = criador.getSession();
+		try {
+			session.beginTransaction();
+			encerrados = new LeilaoDao(session).encerra(vencidos, agora);
+			session.getTransaction().commit();
+		} catch (RuntimeException e) {
+			if (session.getTransaction().isActive()) {
+				session.getTransaction().rollback();
+			}
+			// tenta de novo no proximo segundo
+			reagenda(vencidos, segundo + 1);
+			throw e;
+		} finally {
+			session.close();
+		}
+
+		if (encerrados < vencidos.size()) {
+			// prorrogados sem evento (por outro processo, por exemplo) voltam para a roda com o prazo do banco
+			agendaPeloBanco(new HashSet<Integer>(vencidos));
+		}
+		return encerrados;
+	}
+
+	private synchronized List<Integer> vencidosAte(long segundo) {
+		return roda.avanca(segundo);
+	}
+
+	private synchronized void reagenda(List<Integer> ids, long segundo) {
+		for (Integer id : ids) {
+			roda.agenda(id, segundo);
+		}
+	}
+
+	// os prazos sao relidos do banco: o evento so traz o id do leilao
+	private void aplicaEventos() {
+		synchronized (eventos) {
+			Set<Integer> alterados = new HashSet<Integer>();
+			List<Evento> lote;
+			do {
+				lote = eventos.proximos(EVENTOS_POR_SEGUNDO);
+				for (Evento evento : lote) {
+					switch (evento.getTipo()) {
+					case LEILAO_CRIADO:
+					case LEILAO_ATUALIZADO:
+					case LEILAO_ENCERRADO:
+					case LEILAO_DELETADO:
+						alterados.add(evento.getId());
+						break;
+					default:
+						break;
+					}
+				}
+			} while (lote.size() == EVENTOS_POR_SEGUNDO);
+
+			if (eventos.getPerdidos() > perdidos) {
+				perdidos = eventos.getPerdidos();
+				recupera();
+				return;
+			}
+			if (!alterados.isEmpty()) {
+				agendaPeloBanco(alterados);
+			}
+		}
+	}
+
+	private void agendaPeloBanco(Set<Integer> alterados) {
+		Map<Integer, Calendar> prazos;
+		Session session = criador.getSession();
+		try {
+			prazos = new LeilaoDao(session).pendentesDeEncerramento(alterados);
+		} finally {
+			session.close();
+		}
+
+		synchronized (this) {
+			for (Integer id : alterados) {
+				Calendar prazo = prazos.get(id);
+				if (prazo == null) {
+					roda.cancela(id);
+				} else {
+					roda.agenda(id, segundoDe(prazo));
+				}
+			}
+		}
+	}
+
+	private static long agora() {
+		return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+	}
+
+	private static long segundoDe(Calendar data) {
+		return TimeUnit.MILLISECONDS.toSeconds(data.getTimeInMillis());
+	}
+}
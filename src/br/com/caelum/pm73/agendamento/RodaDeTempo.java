@@ -0,0 +1,129 @@
+package br.com.caelum.pm73.agendamento;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Roda de tempo hierarquica com resolucao de um segundo: segundos, minutos,
+ * horas e dias (ate um ano), mais uma lista de excedentes para prazos mais
+ * distantes. O tempo e tratado como um numero de base mista e cada prazo fica
+ * no nivel do digito mais alto em que difere do relogio da roda; quando esse
+ * digito vira, a posicao e redistribuida para os niveis de baixo. Agendar e
+ * cancelar sao O(1), e cada prazo desce no maximo uma vez por nivel.
+ */
+public class RodaDeTempo {
+
+	private static final int[] TAMANHOS = { 60, 60, 24, 366 };
+
+	// um nivel por unidade de tempo, cada um com uma lista de prazos por posicao
+	private final List<List<List<Prazo>>> niveis;
+	private final long[] unidades;
+	private final List<Prazo> excedentes = new ArrayList<Prazo>();
+	private final Map<Integer, Prazo> agendados = new HashMap<Integer, Prazo>();
+
+	// proximo segundo ainda nao processado
+	private long atual;
+
+	private static class Prazo {
+		final int id;
+		final long segundo;
+		boolean cancelado;
+
+		Prazo(int id, long segundo) {
+			this.id = id;
+			this.segundo = segundo;
+		}
+	}
+
+	public RodaDeTempo(long segundoInicial) {
+		this.atual = segundoInicial;
+		this.niveis = new ArrayList<List<List<Prazo>>>(TAMANHOS.length);
+		this.unidades = new long[TAMANHOS.length + 1];
+
+		unidades[0] = 1;
+		for (int nivel = 0; nivel < TAMANHOS.length; nivel++) {
+			unidades[nivel + 1] = unidades[nivel] * TAMANHOS[nivel];
+			List<List<Prazo>> posicoes = new ArrayList<List<Prazo>>(TAMANHOS[nivel]);
+			for (int posicao = 0; posicao < TAMANHOS[nivel]; posicao++) {
+				posicoes.add(new ArrayList<Prazo>());
+			}
+			niveis.add(posicoes);
+		}
+	}
+
+	// prazos que ja passaram vencem no proximo avanco
+	public synchronized void agenda(int id, long segundo) {
+		cancela(id);
+		Prazo prazo = new Prazo(id, Math.max(segundo, atual));
+		agendados.put(id, prazo);
+		insere(prazo);
+	}
+
+	public synchronized void cancela(int id) {
+		Prazo prazo = agendados.remove(id);
+		if (prazo != null) {
+			prazo.cancelado = true;
+		}
+	}
+
+	public synchronized int getPendentes() {
+		return agendados.size();
+	}
+
+	public synchronized long getAtual() {
+		return atual;
+	}
+
+	// processa todos os segundos ate 'agora', inclusive, e devolve os ids vencidos
+	public synchronized List<Integer> avanca(long agora) {
+		List<Integer> vencidos = new ArrayList<Integer>();
+
+		while (atual <= agora) {
+			if (atual % unidades[TAMANHOS.length] == 0) {
+				redistribui(excedentes);
+			}
+			for (int nivel = TAMANHOS.length - 1; nivel > 0; nivel--) {
+				if (atual % unidades[nivel] == 0) {
+					redistribui(niveis.get(nivel).get(digito(atual, nivel)));
+				}
+			}
+
+			List<Prazo> posicao = niveis.get(0).get(digito(atual, 0));
+			for (Prazo prazo : posicao) {
+				if (!prazo.cancelado) {
+					agendados.remove(prazo.id);
+					vencidos.add(prazo.id);
+				}
+			}
+			posicao.clear();
+			atual++;
+		}
+		return vencidos;
+	}
+
+	private void redistribui(List<Prazo> posicao) {
+		List<Prazo> prazos = new ArrayList<Prazo>(posicao);
+		posicao.clear();
+		for (Prazo prazo : prazos) {
+			if (!prazo.cancelado) {
+				insere(prazo);
+			}
+		}
+	}
+
+	private void insere(Prazo prazo) {
+		for (int nivel = 0; nivel < TAMANHOS.length; nivel++) {
+			if (prazo.segundo / unidades[nivel + 1] == atual / unidades[nivel + 1]) {
+				niveis.get(nivel).get(digito(prazo.segundo, nivel)).add(prazo);
+				return;
+			}
+		}
+		excedentes.add(prazo);
+	}
+
+	private int digito(long segundo, int nivel) {
+		return (int) (segundo / unidades[nivel] % TAMANHOS[nivel]);
+	}
+}
@@ -0,0 +1,231 @@
+package br.com.caelum.pm73.armazem;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.jdbc.ReturningWork;
+
+import br.com.caelum.pm73.dao.CacheDeConsultas;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.eventos.FilaDeEventos;
+import br.com.caelum.pm73.eventos.PublicadorDeEventos;
+import br.com.caelum.pm73.eventos.TipoDeEvento;
+
+/**
+ * Lances dos leiloes ativos mais disputados, fora do heap, com escrita direta
+ * na tabela LANCE. O lance vai para o banco na transacao da sessao e so entra
+ * nas colunas depois do commit, entao um rollback nao deixa lances fantasmas
+ * na memoria. O id do leilao identifica as colunas em vez de ser repetido em
+ * cada linha. Lances gravados pelo LeilaoDao para um leilao carregado (ou em
+ * carga) tambem entram nas colunas, pelo mesmo caminho de depois do commit.
+ */
+public class ArmazemDeLances {
+
+	private static final Map<SessionFactory, ArmazemDeLances> porBanco = new WeakHashMap<SessionFactory, ArmazemDeLances>();
+
+	private final ConcurrentMap<Integer, ColunasDeLances> leiloes = new ConcurrentHashMap<Integer, ColunasDeLances>();
+	private final ConcurrentMap<Integer, ColunasDeLances> carregando = new ConcurrentHashMap<Integer, ColunasDeLances>();
+	// para invalidar no cache de consultas so os intervalos que contem o leilao
+	private final ConcurrentMap<Integer, Double> valoresIniciais = new ConcurrentHashMap<Integer, Double>();
+
+	// traz os lances ja gravados de um leilao que passou a ser quente
+	@SuppressWarnings("unchecked")
+	public ColunasDeLances carrega(Session session, int idLeilao) {
+		ColunasDeLances carregadas = leiloes.get(idLeilao);
+		if (carregadas != null) {
+			return carregadas;
+		}
+
+		// registradas antes da leitura: um lance commitado durante a consulta
+		// chega pelo caminho de depois do commit, e os ids evitam a duplicata
+		ColunasDeLances colunas = new ColunasDeLances(idLeilao);
+		ColunasDeLances emCarga = carregando.putIfAbsent(idLeilao, colunas);
+		if (emCarga != null) {
+			colunas = emCarga;
+		}
+		try {
+			List<Object[]> linhas = session.getNamedQuery("Lance.colunasDoLeilao").setParameter("leilao", idLeilao)
+					.setReadOnly(true).list();
+			for (Object[] linha : linhas) {
+				Calendar data = (Calendar) linha[1];
+				colunas.adicionaLance((Integer) linha[3], (Double) linha[0],
+						data == null ? 0L : data.getTimeInMillis(), linha[2] == null ? 0 : (Integer) linha[2]);
+			}
+
+			Leilao leilao = (Leilao) session.get(Leilao.class, idLeilao);
+			if (leilao != null && leilao.getValorInicial() != null) {
+				valoresIniciais.put(idLeilao, leilao.getValorInicial());
+			}
+
+			ColunasDeLances anteriores = leiloes.putIfAbsent(idLeilao, colunas);
+			return anteriores != null ? anteriores : colunas;
+		} finally {
+			// so sai da carga depois de estar em 'leiloes', para nenhum lance cair no intervalo
+			carregando.remove(idLeilao, colunas);
+		}
+	}
+
+	// colunas que devem receber um lance commitado agora, em carga ou ja carregadas
+	private ColunasDeLances destino(int idLeilao) {
+		ColunasDeLances colunas = carregando.get(idLeilao);
+		return colunas != null ? colunas : leiloes.get(idLeilao);
+	}
+
+	// um armazem por banco, compartilhado pelos DAOs das sessoes dessa fabrica
+	public static ArmazemDeLances de(SessionFactory sf) {
+		synchronized (porBanco) {
+			ArmazemDeLances armazem = porBanco.get(sf);
+			if (armazem == null) {
+				armazem = new ArmazemDeLances();
+				porBanco.put(sf, armazem);
+			}
+			return armazem;
+		}
+	}
+
+	public ColunasDeLances doLeilao(int idLeilao) {
+		return leiloes.get(idLeilao);
+	}
+
+	// o leilao deixou de ser quente; a memoria e liberada quando os buffers forem coletados
+	public void descarta(int idLeilao) {
+		leiloes.remove(idLeilao);
+		carregando.remove(idLeilao);
+		valoresIniciais.remove(idLeilao);
+	}
+
+	public void limpa() {
+		leiloes.clear();
+		carregando.clear();
+		valoresIniciais.clear();
+	}
+
+	public long getBytesForaDoHeap() {
+		long bytes = 0;
+		for (ColunasDeLances colunas : leiloes.values()) {
+			bytes += colunas.getBytesForaDoHeap();
+		}
+		return bytes;
+	}
+
+	public void adiciona(Session session, final int idLeilao, final int idUsuario, final double valor, final long data) {
+		if (leiloes.get(idLeilao) == null) {
+			throw new IllegalStateException("leilao " + idLeilao + " nao esta carregado no armazem");
+		}
+
+		int idLance = session.doReturningWork(new ReturningWork<Integer>() {
+			public Integer execute(Connection conexao) throws SQLException {
+				PreparedStatement insercao = conexao.prepareStatement(
+						"insert into LANCE (DATA, VALOR, LEILAO_ID, USUARIO_ID) values (?, ?, ?, ?)",
+						Statement.RETURN_GENERATED_KEYS);
+				try {
+					insercao.setTimestamp(1, new Timestamp(data));
+					insercao.setDouble(2, valor);
+					insercao.setInt(3, idLeilao);
+					insercao.setInt(4, idUsuario);
+					insercao.executeUpdate();
+					ResultSet chaves = insercao.getGeneratedKeys();
+					chaves.next();
+					return chaves.getInt(1);
+				} finally {
+					insercao.close();
+				}
+			}
+		});
+
+		Double valorInicial = valoresIniciais.get(idLeilao);
+		CacheDeConsultas cache = CacheDeConsultas.de(session.getSessionFactory());
+		if (valorInicial != null) {
+			cache.invalida(session, cache.getDisputadosEntre(), idLeilao, valorInicial);
+		} else {
+			cache.invalidaTabela(session, "LANCE");
+		}
+		new PublicadorDeEventos(session, FilaDeEventos.de(session.getSessionFactory()))
+				.publica(TipoDeEvento.LANCE_ADICIONADO, idLance);
+
+		depoisDoCommit(session, idLeilao, idLance, valor, data, idUsuario);
+	}
+
+	// o valor inicial pode ter mudado: ate o commit as escritas do leilao invalidam
+	// a tabela inteira no cache, e depois dele o valor novo passa a valer
+	public void atualizado(Session session, Leilao leilao) {
+		final int idLeilao = leilao.getId();
+		final Double valorInicial = leilao.getValorInicial();
+		valoresIniciais.remove(idLeilao);
+
+		Transaction transacao = session.getTransaction();
+		if (!transacao.isActive()) {
+			lembraValorInicial(idLeilao, valorInicial);
+			return;
+		}
+		transacao.registerSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					lembraValorInicial(idLeilao, valorInicial);
+				}
+			}
+		});
+	}
+
+	private void lembraValorInicial(int idLeilao, Double valorInicial) {
+		if (valorInicial != null && destino(idLeilao) != null) {
+			valoresIniciais.put(idLeilao, valorInicial);
+		} else {
+			valoresIniciais.remove(idLeilao);
+		}
+	}
+
+	// lance ja gravado pelo LeilaoDao; o destino so e resolvido depois do commit,
+	// porque o leilao pode comecar a ser carregado enquanto a transacao esta aberta
+	public void gravado(Session session, Lance lance) {
+		Calendar data = lance.getData();
+		depoisDoCommit(session, lance.getLeilao().getId(), lance.getId(), lance.getValor(),
+				data == null ? 0L : data.getTimeInMillis(), lance.getUsuario() == null ? 0 : lance.getUsuario().getId());
+	}
+
+	private void depoisDoCommit(Session session, final int idLeilao, final int idLance, final double valor,
+			final long data, final int idUsuario) {
+		Transaction transacao = session.getTransaction();
+		if (!transacao.isActive()) {
+			leva(idLeilao, idLance, valor, data, idUsuario);
+			return;
+		}
+		transacao.registerSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					leva(idLeilao, idLance, valor, data, idUsuario);
+				}
+			}
+		});
+	}
+
+	private void leva(int idLeilao, int idLance, double valor, long data, int idUsuario) {
+		ColunasDeLances colunas = destino(idLeilao);
+		if (colunas != null) {
+			colunas.adicionaLance(idLance, valor, data, idUsuario);
+		}
+	}
+}
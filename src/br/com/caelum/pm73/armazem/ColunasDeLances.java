@@ -0,0 +1,192 @@
+package br.com.caelum.pm73.armazem;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Lances de um leilao guardados fora do heap, em colunas de tipos primitivos
+ * (valor, data em milissegundos e id do usuario). As colunas crescem em blocos
+ * de tamanho fixo, entao um append nunca copia os dados ja gravados.
+ *
+ * Um unico escritor por vez (os appends sao sincronizados) e leitores sem
+ * lock: o tamanho e volatil e so e incrementado depois que a linha foi gravada,
+ * e a lista de blocos e trocada inteira quando cresce.
+ *
+ * Os ids dos lances ficam num conjunto no heap para que a carga inicial e o
+ * caminho de depois do commit possam entregar o mesmo lance sem duplica-lo.
+ */
+public class ColunasDeLances {
+
+	static final int LINHAS_POR_BLOCO = 16384;
+	private static final int BYTES_POR_LINHA = 8 + 8 + 4;
+
+	private final int idLeilao;
+	private volatile Bloco[] blocos = new Bloco[0];
+	private volatile int tamanho;
+	private final Set<Integer> lances = new HashSet<Integer>();
+
+	private static class Bloco {
+		final DoubleBuffer valores;
+		final LongBuffer datas;
+		final IntBuffer usuarios;
+
+		Bloco() {
+			valores = direto(8).asDoubleBuffer();
+			datas = direto(8).asLongBuffer();
+			usuarios = direto(4).asIntBuffer();
+		}
+
+		private static ByteBuffer direto(int bytesPorValor) {
+			return ByteBuffer.allocateDirect(LINHAS_POR_BLOCO * bytesPorValor).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	public ColunasDeLances(int idLeilao) {
+		this.idLeilao = idLeilao;
+	}
+
+	public int getIdLeilao() {
+		return idLeilao;
+	}
+
+	public int getTamanho() {
+		return tamanho;
+	}
+
+	public long getBytesForaDoHeap() {
+		return (long) blocos.length * LINHAS_POR_BLOCO * BYTES_POR_LINHA;
+	}
+
+	public synchronized int adiciona(double valor, long data, int idUsuario) {
+		int linha = tamanho;
+		int deslocamento = linha % LINHAS_POR_BLOCO;
+		if (deslocamento == 0) {
+			Bloco[] maior = Arrays.copyOf(blocos, blocos.length + 1);
+			maior[blocos.length] = new Bloco();
+			blocos = maior;
+		}
+
+		Bloco bloco = bloco(linha);
+		bloco.valores.put(deslocamento, valor);
+		bloco.datas.put(deslocamento, data);
+		bloco.usuarios.put(deslocamento, idUsuario);
+
+		tamanho = linha + 1;
+		return linha;
+	}
+
+	// devolve false se o lance ja estava nas colunas
+	public synchronized boolean adicionaLance(int idLance, double valor, long data, int idUsuario) {
+		if (!lances.add(idLance)) {
+			return false;
+		}
+		adiciona(valor, data, idUsuario);
+		return true;
+	}
+
+	public double valor(int linha) {
+		return bloco(linha).valores.get(linha % LINHAS_POR_BLOCO);
+	}
+
+	public long data(int linha) {
+		return bloco(linha).datas.get(linha % LINHAS_POR_BLOCO);
+	}
+
+	public int usuario(int linha) {
+		return bloco(linha).usuarios.get(linha % LINHAS_POR_BLOCO);
+	}
+
+	// lances com data entre 'de' e 'ate', inclusive, na ordem em que foram dados
+	public int percorre(long de, long ate, VisitanteDeLances visitante) {
+		int visitados = 0;
+		int total = tamanho;
+		for (int inicio = 0; inicio < total; inicio += LINHAS_POR_BLOCO) {
+			Bloco bloco = bloco(inicio);
+			int fim = Math.min(LINHAS_POR_BLOCO, total - inicio);
+			for (int i = 0; i < fim; i++) {
+				long data = bloco.datas.get(i);
+				if (data >= de && data <= ate) {
+					visitante.visita(bloco.valores.get(i), data, bloco.usuarios.get(i));
+					visitados++;
+				}
+			}
+		}
+		return visitados;
+	}
+
+	/**
+	 * Linhas dos k maiores lances, do maior para o menor, usando um heap de
+	 * minimo sobre um int[] para nao criar objetos por lance.
+	 */
+	public int[] maiores(int k) {
+		int total = tamanho;
+		int[] heap = new int[Math.min(k, total)];
+		int ocupados = 0;
+
+		for (int linha = 0; linha < total; linha++) {
+			double valor = valor(linha);
+			if (ocupados < heap.length) {
+				heap[ocupados] = linha;
+				sobe(heap, ocupados++);
+			} else if (heap.length > 0 && valor > valor(heap[0])) {
+				heap[0] = linha;
+				desce(heap, 0, ocupados);
+			}
+		}
+
+		// extrai do heap em ordem crescente, preenchendo o vetor de tras para frente
+		int[] ordenadas = new int[ocupados];
+		for (int i = ocupados - 1; i >= 0; i--) {
+			ordenadas[i] = heap[0];
+			heap[0] = heap[i];
+			desce(heap, 0, i);
+		}
+		return ordenadas;
+	}
+
+	private void sobe(int[] heap, int posicao) {
+		while (posicao > 0) {
+			int pai = (posicao - 1) / 2;
+			if (valor(heap[pai]) <= valor(heap[posicao])) {
+				return;
+			}
+			troca(heap, pai, posicao);
+			posicao = pai;
+		}
+	}
+
+	private void desce(int[] heap, int posicao, int ocupados) {
+		while (true) {
+			int menor = posicao;
+			int esquerda = 2 * posicao + 1;
+			int direita = esquerda + 1;
+			if (esquerda < ocupados && valor(heap[esquerda]) < valor(heap[menor])) {
+				menor = esquerda;
+			}
+			if (direita < ocupados && valor(heap[direita]) < valor(heap[menor])) {
+				menor = direita;
+			}
+			if (menor == posicao) {
+				return;
+			}
+			troca(heap, menor, posicao);
+			posicao = menor;
+		}
+	}
+
+	private static void troca(int[] heap, int i, int j) {
+		int aux = heap[i];
+		heap[i] = heap[j];
+		heap[j] = aux;
+	}
+
+	private Bloco bloco(int linha) {
+		return blocos[linha / LINHAS_POR_BLOCO];
+	}
+}
@@ -0,0 +1,6 @@
+package br.com.caelum.pm73.armazem;
+
+public interface VisitanteDeLances {
+
+	void visita(double valor, long data, int idUsuario);
+}
@@ -0,0 +1,119 @@
+package br.com.caelum.pm73.carga;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Parametros de uma execucao do {@link GeradorDeCarga} e os ids de usuarios e
+ * leiloes que as operacoes sorteiam.
+ */
+public class CenarioDeCarga {
+
+	private int usuarios = 2000;
+	private int threads = 20;
+	private int operacoesPorSegundo = 200;
+	private int segundos = 30;
+	private long limiteDeEsperaEmMillis = 50;
+	private final Map<Operacao, Integer> mix = new EnumMap<Operacao, Integer>(Operacao.class);
+
+	private final List<Integer> idsDeUsuarios = new ArrayList<Integer>();
+	private final List<Integer> idsDeLeiloes = new ArrayList<Integer>();
+
+	public CenarioDeCarga() {
+		mix.put(Operacao.CRIA_LEILAO, 10);
+		mix.put(Operacao.DA_LANCE, 60);
+		mix.put(Operacao.NAVEGA_NOVOS, 15);
+		mix.put(Operacao.NAVEGA_POR_PERIODO, 15);
+	}
+
+	// argumentos no formato chave=valor, por exemplo: taxa=500 mix=lance:80,novos:20
+	public static CenarioDeCarga dosArgumentos(String[] args) {
+		CenarioDeCarga cenario = new CenarioDeCarga();
+		for (String arg : args) {
+			String[] partes = arg.split("=", 2);
+			if (partes.length != 2) {
+				throw new IllegalArgumentException("argumento invalido: " + arg);
+			}
+			String chave = partes[0];
+			String valor = partes[1];
+			if (chave.equals("usuarios")) {
+				cenario.usuarios = Integer.parseInt(valor);
+			} else if (chave.equals("threads")) {
+				cenario.threads = Integer.parseInt(valor);
+			} else if (chave.equals("taxa")) {
+				cenario.operacoesPorSegundo = Integer.parseInt(valor);
+			} else if (chave.equals("duracao")) {
+				cenario.segundos = Integer.parseInt(valor);
+			} else if (chave.equals("espera")) {
+				cenario.limiteDeEsperaEmMillis = Long.parseLong(valor);
+			} else if (chave.equals("mix")) {
+				cenario.mix.clear();
+				for (String item : valor.split(",")) {
+					String[] peso = item.split(":");
+					cenario.mix.put(Operacao.porNome(peso[0]), Integer.parseInt(peso[1]));
+				}
+			} else {
+				throw new IllegalArgumentException("parametro desconhecido: " + chave);
+			}
+		}
+		return cenario;
+	}
+
+	public Operacao sorteiaOperacao(Random aleatorio) {
+		int soma = 0;
+		for (int peso : mix.values()) {
+			soma += peso;
+		}
+		int sorteio = aleatorio.nextInt(soma);
+		for (Map.Entry<Operacao, Integer> operacao : mix.entrySet()) {
+			sorteio -= operacao.getValue();
+			if (sorteio < 0) {
+				return operacao.getKey();
+			}
+		}
+		throw new IllegalStateException("mix de operacoes vazio");
+	}
+
+	public synchronized void registraUsuario(int id) {
+		idsDeUsuarios.add(id);
+	}
+
+	public synchronized void registraLeilao(int id) {
+		idsDeLeiloes.add(id);
+	}
+
+	public synchronized int usuarioAleatorio(Random aleatorio) {
+		return idsDeUsuarios.get(aleatorio.nextInt(idsDeUsuarios.size()));
+	}
+
+	public synchronized int leilaoAleatorio(Random aleatorio) {
+		return idsDeLeiloes.get(aleatorio.nextInt(idsDeLeiloes.size()));
+	}
+
+	public int getUsuarios() {
+		return usuarios;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getOperacoesPorSegundo() {
+		return operacoesPorSegundo;
+	}
+
+	public int getSegundos() {
+		return segundos;
+	}
+
+	public long getLimiteDeEsperaEmMillis() {
+		return limiteDeEsperaEmMillis;
+	}
+
+	public Map<Operacao, Integer> getMix() {
+		return mix;
+	}
+}
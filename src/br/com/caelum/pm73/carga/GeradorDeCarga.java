@@ -0,0 +1,213 @@
+package br.com.caelum.pm73.carga;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.ModoDeLote;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Simula usuarios concorrentes criando leiloes, dando lances e navegando, no
+ * HSQLDB local configurado pelo {@link CriadorDeSessao}.
+ *
+ * As operacoes chegam numa taxa fixa, independente de quanto o banco demora a
+ * responder, e a latencia e medida a partir do instante em que cada operacao
+ * deveria ter comecado. Assim o tempo que ela passa na fila quando o sistema
+ * esta saturado entra na conta (correcao de coordinated omission). Operacoes
+ * que falham tambem entram nos histogramas, alem de serem contadas a parte.
+ *
+ * No modo LOCKS do HSQLDB a espera por lock acontece na execucao dos comandos,
+ * nao no commit, entao a espera e medida sobre a transacao inteira. O show_sql
+ * e desligado: cada linha impressa passaria pelo System.out sincronizado e
+ * entraria nas latencias.
+ *
+ * Uso: GeradorDeCarga usuarios=2000 threads=20 taxa=200 duracao=30 espera=50
+ * mix=criar:10,lance:60,novos:15,periodo:15
+ */
+public class GeradorDeCarga {
+
+	private final CenarioDeCarga cenario;
+	private final CriadorDeSessao criador = new CriadorDeSessao();
+
+	private final HistogramaDeLatencias latencias = new HistogramaDeLatencias();
+	private final Map<Operacao, HistogramaDeLatencias> latenciasPorOperacao =
+			new EnumMap<Operacao, HistogramaDeLatencias>(Operacao.class);
+	private final HistogramaDeLatencias transacoes = new HistogramaDeLatencias();
+	private final HistogramaDeLatencias falhas = new HistogramaDeLatencias();
+	private final AtomicLong deadlocks = new AtomicLong();
+	private final AtomicLong esperasLongas = new AtomicLong();
+	private final AtomicLong erros = new AtomicLong();
+
+	public GeradorDeCarga(CenarioDeCarga cenario) {
+		this.cenario = cenario;
+		for (Operacao operacao : Operacao.values()) {
+			latenciasPorOperacao.put(operacao, new HistogramaDeLatencias());
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (System.getProperty(CriadorDeSessao.MOSTRA_SQL) == null) {
+			System.setProperty(CriadorDeSessao.MOSTRA_SQL, "false");
+		}
+		GeradorDeCarga gerador = new GeradorDeCarga(CenarioDeCarga.dosArgumentos(args));
+		System.out.println("preparacao: " + gerador.preparaDados());
+		long nanos = gerador.executa();
+		System.out.println(gerador.relatorio(nanos));
+	}
+
+	// devolve o modo de lote usado, com as estatisticas de flush da preparacao
+	public ModoDeLote preparaDados() {
+		Session session = criador.getSession();
+		try {
+			session.beginTransaction();
+			ModoDeLote lote = new ModoDeLote(200);
+			UsuarioDao usuarioDao = new UsuarioDao(session, lote);
+			LeilaoDao leilaoDao = new LeilaoDao(session, lote);
+			Random aleatorio = new Random(42);
+
+			// reaproveita os usuarios de execucoes anteriores
+			List<Usuario> dados = new ArrayList<Usuario>();
+			for (int i = 0; i < cenario.getUsuarios(); i++) {
+				dados.add(new Usuario("Usuario " + i, "usuario" + i + "@carga.com.br"));
+			}
+			List<Usuario> usuarios = usuarioDao.encontraOuCria(dados);
+
+			for (int i = 0; i < usuarios.size(); i++) {
+				Usuario usuario = usuarios.get(i);
+				cenario.registraUsuario(usuario.getId());
+
+				if (i % 10 == 0) {
+					Leilao leilao = new Leilao("Leilao inicial " + i, 100.0 + aleatorio.nextInt(5000), usuario, false);
+					leilaoDao.salvar(leilao);
+					cenario.registraLeilao(leilao.getId());
+				}
+			}
+			session.getTransaction().commit();
+			return lote;
+		} finally {
+			session.close();
+		}
+	}
+
+	// devolve a duracao total da execucao, em nanossegundos
+	public long executa() throws InterruptedException {
+		ExecutorService trabalhadores = Executors.newFixedThreadPool(cenario.getThreads());
+
+		long intervalo = TimeUnit.SECONDS.toNanos(1) / cenario.getOperacoesPorSegundo();
+		long totalDeOperacoes = (long) cenario.getOperacoesPorSegundo() * cenario.getSegundos();
+		Random aleatorio = new Random();
+
+		long inicio = System.nanoTime();
+		for (long i = 0; i < totalDeOperacoes; i++) {
+			final long previsto = inicio + i * intervalo;
+			final Operacao operacao = cenario.sorteiaOperacao(aleatorio);
+
+			long falta = previsto - System.nanoTime();
+			if (falta > 0) {
+				LockSupport.parkNanos(falta);
+			}
+
+			trabalhadores.execute(new Runnable() {
+				public void run() {
+					executa(operacao, previsto);
+				}
+			});
+		}
+
+		trabalhadores.shutdown();
+		trabalhadores.awaitTermination(1, TimeUnit.HOURS);
+		return System.nanoTime() - inicio;
+	}
+
+	private void executa(Operacao operacao, long previsto) {
+		Session session = criador.getSession();
+		long inicioDaTransacao = System.nanoTime();
+		Transaction transacao = session.beginTransaction();
+		try {
+			operacao.executa(session, ThreadLocalRandom.current(), cenario);
+			transacao.commit();
+			registraTransacao(inicioDaTransacao);
+			registraLatencia(operacao, previsto);
+		} catch (RuntimeException e) {
+			if (transacao.isActive()) {
+				transacao.rollback();
+			}
+			registraTransacao(inicioDaTransacao);
+			long latencia = registraLatencia(operacao, previsto);
+			falhas.registra(latencia);
+			if (ehDeadlock(e)) {
+				deadlocks.incrementAndGet();
+			} else {
+				erros.incrementAndGet();
+			}
+		} finally {
+			session.close();
+		}
+	}
+
+	// comandos + commit (ou rollback): inclui a espera por locks
+	private void registraTransacao(long inicio) {
+		long duracao = System.nanoTime() - inicio;
+		transacoes.registra(TimeUnit.NANOSECONDS.toMicros(duracao));
+		if (TimeUnit.NANOSECONDS.toMillis(duracao) >= cenario.getLimiteDeEsperaEmMillis()) {
+			esperasLongas.incrementAndGet();
+		}
+	}
+
+	private long registraLatencia(Operacao operacao, long previsto) {
+		long latencia = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - previsto);
+		latencias.registra(latencia);
+		latenciasPorOperacao.get(operacao).registra(latencia);
+		return latencia;
+	}
+
+	// o HSQLDB desfaz uma das transacoes do ciclo com SQLSTATE 40001
+	static boolean ehDeadlock(Throwable erro) {
+		for (Throwable causa = erro; causa != null; causa = causa.getCause()) {
+			if (causa instanceof SQLException && "40001".equals(((SQLException) causa).getSQLState())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String relatorio(long nanos) {
+		double segundos = nanos / 1e9;
+		StringBuilder relatorio = new StringBuilder();
+		relatorio.append(String.format("operacoes: %d em %.1fs (%.1f ops/s, alvo %d ops/s)%n", latencias.getTotal(),
+				segundos, latencias.getTotal() / segundos, cenario.getOperacoesPorSegundo()));
+		relatorio.append(String.format("deadlocks: %d  erros: %d  transacoes acima de %dms: %d%n", deadlocks.get(),
+				erros.get(), cenario.getLimiteDeEsperaEmMillis(), esperasLongas.get()));
+
+		linha(relatorio, "total", latencias);
+		for (Map.Entry<Operacao, HistogramaDeLatencias> operacao : latenciasPorOperacao.entrySet()) {
+			linha(relatorio, operacao.getKey().getNome(), operacao.getValue());
+		}
+		linha(relatorio, "transacao", transacoes);
+		linha(relatorio, "falhas", falhas);
+		return relatorio.toString();
+	}
+
+	private void linha(StringBuilder relatorio, String nome, HistogramaDeLatencias histograma) {
+		relatorio.append(String.format("%-9s n=%-8d p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus%n", nome,
+				histograma.getTotal(), histograma.percentil(50), histograma.percentil(90), histograma.percentil(99),
+				histograma.percentil(99.9), histograma.getMaximo()));
+	}
+}
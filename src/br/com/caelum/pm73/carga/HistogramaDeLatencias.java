@@ -0,0 +1,66 @@
+package br.com.caelum.pm73.carga;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma log-linear de latencias em microssegundos: 64 faixas por potencia
+ * de dois, o que da um erro maximo de ~1.5% em qualquer percentil. Pode ser
+ * alimentado por varias threads ao mesmo tempo.
+ */
+public class HistogramaDeLatencias {
+
+	private static final int SUB_FAIXAS = 64;
+	private static final int FAIXAS = SUB_FAIXAS * 60;
+
+	private final AtomicLongArray contagens = new AtomicLongArray(FAIXAS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong maximo = new AtomicLong();
+
+	public void registra(long micros) {
+		long valor = Math.max(0, micros);
+		contagens.incrementAndGet(indice(valor));
+		total.incrementAndGet();
+
+		long atual = maximo.get();
+		while (valor > atual && !maximo.compareAndSet(atual, valor)) {
+			atual = maximo.get();
+		}
+	}
+
+	public long getTotal() {
+		return total.get();
+	}
+
+	public long getMaximo() {
+		return maximo.get();
+	}
+
+	// limite superior da faixa que contem o percentil p (0 a 100)
+	public long percentil(double p) {
+		long quantidade = total.get();
+		if (quantidade == 0) {
+			return 0;
+		}
+		long posicao = Math.max(1, (long) Math.ceil(p / 100.0 * quantidade));
+		long acumulado = 0;
+		for (int i = 0; i < FAIXAS; i++) {
+			acumulado += contagens.get(i);
+			if (acumulado >= posicao) {
+				return Math.min(limiteSuperior(i), maximo.get());
+			}
+		}
+		return maximo.get();
+	}
+
+	static int indice(long valor) {
+		int deslocamento = Math.max(0, 63 - Long.numberOfLeadingZeros(valor) - 6);
+		return deslocamento * SUB_FAIXAS + (int) (valor >>> deslocamento);
+	}
+
+	static long limiteSuperior(int indice) {
+		int deslocamento = Math.max(0, indice / SUB_FAIXAS - 1);
+		long inicio = (long) (indice - deslocamento * SUB_FAIXAS) << deslocamento;
+		return inicio + (1L << deslocamento) - 1;
+	}
+}
@@ -0,0 +1,77 @@
+package br.com.caelum.pm73.carga;
+
+import java.util.Calendar;
+import java.util.Random;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+public enum Operacao {
+
+	CRIA_LEILAO("criar") {
+		@Override
+		void executa(Session session, Random aleatorio, CenarioDeCarga cenario) {
+			Usuario dono = new UsuarioDao(session).porId(cenario.usuarioAleatorio(aleatorio));
+			Leilao leilao = new Leilao("Leilao de carga", 100.0 + aleatorio.nextInt(5000), dono, aleatorio.nextBoolean());
+			new LeilaoDao(session).salvar(leilao);
+			cenario.registraLeilao(leilao.getId());
+		}
+	},
+
+	DA_LANCE("lance") {
+		@Override
+		void executa(Session session, Random aleatorio, CenarioDeCarga cenario) {
+			LeilaoDao leilaoDao = new LeilaoDao(session);
+			Leilao leilao = leilaoDao.porId(cenario.leilaoAleatorio(aleatorio));
+			if (leilao == null) {
+				return;
+			}
+			Usuario usuario = new UsuarioDao(session).porId(cenario.usuarioAleatorio(aleatorio));
+			double valor = leilao.getValorInicial() + aleatorio.nextInt(1000);
+			leilao.adicionaLance(new Lance(Calendar.getInstance(), usuario, valor, leilao));
+			leilaoDao.salvar(leilao);
+		}
+	},
+
+	NAVEGA_NOVOS("novos") {
+		@Override
+		void executa(Session session, Random aleatorio, CenarioDeCarga cenario) {
+			new LeilaoDao(session).novos();
+		}
+	},
+
+	NAVEGA_POR_PERIODO("periodo") {
+		@Override
+		void executa(Session session, Random aleatorio, CenarioDeCarga cenario) {
+			Calendar inicio = Calendar.getInstance();
+			inicio.add(Calendar.DAY_OF_MONTH, -7);
+			new LeilaoDao(session).porPeriodo(inicio, Calendar.getInstance());
+		}
+	};
+
+	private final String nome;
+
+	private Operacao(String nome) {
+		this.nome = nome;
+	}
+
+	public String getNome() {
+		return nome;
+	}
+
+	public static Operacao porNome(String nome) {
+		for (Operacao operacao : values()) {
+			if (operacao.nome.equals(nome)) {
+				return operacao;
+			}
+		}
+		throw new IllegalArgumentException("operacao desconhecida: " + nome);
+	}
+
+	abstract void executa(Session session, Random aleatorio, CenarioDeCarga cenario);
+}
@@ -0,0 +1,138 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+/**
+ * Regioes de cache das consultas por intervalo do {@link LeilaoDao}. Cada
+ * invalidacao e feita na hora, para a propria sessao nao ler dados velhos, e
+ * repetida ao fim da transacao, para descartar o que outra sessao tenha
+ * guardado antes do commit. Ate la a regiao fica pendente para a sessao que
+ * escreveu: o que ela le enxerga as proprias escritas ainda nao confirmadas e
+ * nao pode ser lido nem guardado no cache compartilhado.
+ */
+public class CacheDeConsultas {
+
+	private static final Map<SessionFactory, CacheDeConsultas> porBanco = new WeakHashMap<SessionFactory, CacheDeConsultas>();
+
+	private final Map<Session, Set<RegiaoDeCache>> pendentes = new WeakHashMap<Session, Set<RegiaoDeCache>>();
+	private final RegiaoDeCache porPeriodo;
+	private final RegiaoDeCache disputadosEntre;
+
+	public CacheDeConsultas(int capacidadePorRegiao) {
+		porPeriodo = new RegiaoDeCache("Leilao.porPeriodo", capacidadePorRegiao, "LEILAO");
+		disputadosEntre = new RegiaoDeCache("Leilao.disputadosEntre", capacidadePorRegiao, "LEILAO", "LANCE");
+	}
+
+	// um cache por SessionFactory, para que bancos diferentes nunca compartilhem ids
+	public static CacheDeConsultas de(SessionFactory sf) {
+		synchronized (porBanco) {
+			CacheDeConsultas cache = porBanco.get(sf);
+			if (cache == null) {
+				cache = new CacheDeConsultas(1000);
+				porBanco.put(sf, cache);
+			}
+			return cache;
+		}
+	}
+
+	public RegiaoDeCache getPorPeriodo() {
+		return porPeriodo;
+	}
+
+	public RegiaoDeCache getDisputadosEntre() {
+		return disputadosEntre;
+	}
+
+	public void invalidaTudo() {
+		porPeriodo.invalidaTudo();
+		disputadosEntre.invalidaTudo();
+	}
+
+	// para escritas que nao sabem quais linhas tocaram; pendente ate o fim da transacao, como invalida()
+	public void invalidaTabela(final Session session, String tabela) {
+		for (final RegiaoDeCache regiao : new RegiaoDeCache[] { porPeriodo, disputadosEntre }) {
+			if (!regiao.dependeDe(tabela)) {
+				continue;
+			}
+			regiao.invalidaTudo();
+
+			Transaction transacao = session.getTransaction();
+			if (transacao.isActive()) {
+				marcaPendente(session, regiao);
+				transacao.registerSynchronization(new Synchronization() {
+					public void beforeCompletion() {
+					}
+
+					public void afterCompletion(int status) {
+						regiao.invalidaTudo();
+						limpaPendentes(session);
+					}
+				});
+			}
+		}
+	}
+
+	public void invalida(Session session, RegiaoDeCache regiao, int id, double valor) {
+		invalida(session, regiao, Collections.singleton(id), valor);
+	}
+
+	public void invalida(final Session session, final RegiaoDeCache regiao, final Collection<Integer> ids,
+			final double valor) {
+		regiao.invalida(ids, valor);
+
+		Transaction transacao = session.getTransaction();
+		if (transacao.isActive()) {
+			marcaPendente(session, regiao);
+			transacao.registerSynchronization(new Synchronization() {
+				public void beforeCompletion() {
+				}
+
+				public void afterCompletion(int status) {
+					regiao.invalida(ids, valor);
+					limpaPendentes(session);
+				}
+			});
+		}
+	}
+
+	// true enquanto a transacao da sessao tem escritas nao confirmadas que afetam a regiao
+	public boolean temEscritasPendentes(Session session, RegiaoDeCache regiao) {
+		synchronized (pendentes) {
+			Set<RegiaoDeCache> regioes = pendentes.get(session);
+			return regioes != null && regioes.contains(regiao);
+		}
+	}
+
+	private void marcaPendente(Session session, RegiaoDeCache regiao) {
+		synchronized (pendentes) {
+			Set<RegiaoDeCache> regioes = pendentes.get(session);
+			if (regioes == null) {
+				regioes = new HashSet<RegiaoDeCache>();
+				pendentes.put(session, regioes);
+			}
+			regioes.add(regiao);
+		}
+	}
+
+	private void limpaPendentes(Session session) {
+		synchronized (pendentes) {
+			pendentes.remove(session);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return porPeriodo + "\n" + disputadosEntre;
+	}
+}
@@ -0,0 +1,159 @@
+package br.com.caelum.pm73.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache de PreparedStatements de uma conexao do pool. O Hibernate fecha o
+ * statement ao fim de cada consulta; aqui o close() apenas devolve o statement
+ * para o cache, e o proximo prepareStatement() com o mesmo SQL o reaproveita.
+ * Um statement em uso fica fora do cache, entao dois usos simultaneos do mesmo
+ * SQL na mesma conexao recebem statements diferentes.
+ */
+class CacheDeStatements implements InvocationHandler {
+
+	private final Connection conexao;
+	private final Connection proxy;
+	private final LinkedHashMap<String, PreparedStatement> livres;
+	private final EstatisticasDeConsultas estatisticas;
+
+	CacheDeStatements(Connection conexao, final int tamanhoMaximo, EstatisticasDeConsultas estatisticas) {
+		this.conexao = conexao;
+		this.estatisticas = estatisticas;
+		this.livres = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> maisAntigo) {
+				if (size() > tamanhoMaximo) {
+					fechaSilenciosamente(maisAntigo.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+		this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, this);
+	}
+
+	Connection getProxy() {
+		return proxy;
+	}
+
+	Connection getConexao() {
+		return conexao;
+	}
+
+	public Object invoke(Object objeto, Method metodo, Object[] args) throws Throwable {
+		if (metodo.getName().equals("prepareStatement")) {
+			return prepara(metodo, args);
+		}
+		if (metodo.getName().equals("close")) {
+			fechaTodos();
+		}
+		return delega(conexao, metodo, args);
+	}
+
+	private Object prepara(Method metodo, Object[] args) throws Throwable {
+		String sql = (String) args[0];
+		String chave = Arrays.deepToString(args);
+
+		PreparedStatement statement;
+		synchronized (livres) {
+			statement = livres.remove(chave);
+		}
+
+		if (statement != null) {
+			estatisticas.registraReuso(sql);
+		} else {
+			long inicio = System.nanoTime();
+			statement = (PreparedStatement) delega(conexao, metodo, args);
+			estatisticas.registraPreparacao(sql, System.nanoTime() - inicio);
+		}
+
+		return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new StatementReaproveitavel(chave, statement));
+	}
+
+	private void devolve(String chave, PreparedStatement statement) throws SQLException {
+		statement.clearParameters();
+		statement.clearBatch();
+		statement.setMaxRows(0);
+		statement.setQueryTimeout(0);
+
+		PreparedStatement anterior;
+		synchronized (livres) {
+			anterior = livres.put(chave, statement);
+		}
+		if (anterior != null) {
+			fechaSilenciosamente(anterior);
+		}
+	}
+
+	void fechaTodos() {
+		synchronized (livres) {
+			for (Iterator<PreparedStatement> it = livres.values().iterator(); it.hasNext();) {
+				fechaSilenciosamente(it.next());
+				it.remove();
+			}
+		}
+	}
+
+	private static void fechaSilenciosamente(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			// o statement seria descartado de qualquer forma
+		}
+	}
+
+	private static Object delega(Object alvo, Method metodo, Object[] args) throws Throwable {
+		try {
+			return metodo.invoke(alvo, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	private class StatementReaproveitavel implements InvocationHandler {
+
+		private final String chave;
+		private final PreparedStatement statement;
+		private boolean fechado;
+
+		StatementReaproveitavel(String chave, PreparedStatement statement) {
+			this.chave = chave;
+			this.statement = statement;
+		}
+
+		public Object invoke(Object objeto, Method metodo, Object[] args) throws Throwable {
+			String nome = metodo.getName();
+			if (nome.equals("close")) {
+				if (!fechado) {
+					fechado = true;
+					devolve(chave, statement);
+				}
+				return null;
+			}
+			if (nome.equals("isClosed")) {
+				return fechado;
+			}
+			if (nome.equals("getConnection")) {
+				return proxy;
+			}
+			if (fechado) {
+				throw new SQLException("statement ja foi fechado");
+			}
+			return delega(statement, metodo, args);
+		}
+	}
+}
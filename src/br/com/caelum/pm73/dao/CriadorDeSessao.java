@@ -1,7 +1,15 @@
 package br.com.caelum.pm73.dao;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.FlushMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.cfg.AnnotationConfiguration;
 import org.hibernate.cfg.Configuration;
 
@@ -9,33 +17,157 @@ import br.com.caelum.pm73.dominio.Lance;
 import br.com.caelum.pm73.dominio.Leilao;
 import br.com.caelum.pm73.dominio.Usuario;
 
+/**
+ * Abre sessoes para um banco HSQLDB. O perfil vem da propriedade de sistema
+ * caelum.banco: "arquivo" (padrao) usa o caelum.db em disco; "mem" ou
+ * "mem:nome" usa um banco em memoria, com o schema criado a partir das
+ * entidades. Cada banco tem a sua configuracao e SessionFactory, entao testes
+ * em paralelo podem usar {@link #emMemoria(String)} com nomes diferentes.
+ */
 @SuppressWarnings("deprecation")
 public class CriadorDeSessao {
 
-	private static AnnotationConfiguration config;
-	private static SessionFactory sf;
-	
+	public static final String PERFIL = "caelum.banco";
+	// -Dcaelum.estatisticas=true liga as estatisticas do Hibernate usadas por EstatisticasDeConsultas.relatorio()
+	public static final String ESTATISTICAS = "caelum.estatisticas";
+	// -Dcaelum.mostraSql=false desliga o show_sql, por exemplo em medicoes de carga
+	public static final String MOSTRA_SQL = "caelum.mostraSql";
+
+	private static final String ARQUIVO = "jdbc:hsqldb:caelum.db;shutdown=true";
+	private static final Map<String, Banco> bancos = new HashMap<String, Banco>();
+
+	private static class Banco {
+		AnnotationConfiguration config;
+		SessionFactory sf;
+		long millisDeInicializacao;
+	}
+
+	private final String url;
+
+	public CriadorDeSessao() {
+		this(urlDoPerfil(System.getProperty(PERFIL, "arquivo")));
+	}
+
+	private CriadorDeSessao(String url) {
+		this.url = url;
+	}
+
+	// banco em memoria isolado, identificado pelo nome
+	public static CriadorDeSessao emMemoria(String nome) {
+		return new CriadorDeSessao("jdbc:hsqldb:mem:" + nome);
+	}
+
+	static String urlDoPerfil(String perfil) {
+		if (perfil.equals("arquivo")) {
+			return ARQUIVO;
+		}
+		if (perfil.equals("mem")) {
+			return "jdbc:hsqldb:mem:caelum";
+		}
+		if (perfil.startsWith("mem:")) {
+			return "jdbc:hsqldb:" + perfil;
+		}
+		throw new IllegalArgumentException("perfil de banco desconhecido: " + perfil);
+	}
+
+	public boolean isEmMemoria() {
+		return url.startsWith("jdbc:hsqldb:mem:");
+	}
+
 	public Session getSession() {
-		if(sf == null) {
-			sf = getConfig().buildSessionFactory();
+		return getSessionFactory().openSession();
+	}
+
+	// as consultas nomeadas sao validadas e traduzidas uma unica vez, aqui, medindo cada uma
+	public SessionFactory getSessionFactory() {
+		synchronized (bancos) {
+			Banco banco = banco();
+			if(banco.sf == null) {
+				long inicio = System.currentTimeMillis();
+				SessionFactory sf = getConfig().buildSessionFactory();
+				try {
+					EstatisticasDeConsultas.de(sf).traduz(sf, getConfig().getNamedQueries());
+				} catch (RuntimeException e) {
+					sf.close();
+					throw e;
+				}
+				banco.sf = sf;
+				banco.millisDeInicializacao = System.currentTimeMillis() - inicio;
+			}
+			return banco.sf;
+		}
+	}
+
+	// para leituras em jobs longos: nada e verificado no flush e nenhum snapshot e guardado
+	public Session getSessaoSomenteLeitura() {
+		Session session = getSessionFactory().openSession();
+		session.setDefaultReadOnly(true);
+		session.setFlushMode(FlushMode.MANUAL);
+		return session;
+	}
+
+	// sem contexto de persistencia: cada entidade lida e esquecida em seguida
+	public StatelessSession getSessaoSemEstado() {
+		return getSessionFactory().openStatelessSession();
+	}
+
+	public long getMillisDeInicializacao() {
+		synchronized (bancos) {
+			return banco().millisDeInicializacao;
+		}
+	}
+
+	// fecha a SessionFactory; um banco em memoria e descartado junto
+	public void fecha() throws SQLException {
+		synchronized (bancos) {
+			Banco banco = bancos.remove(url);
+			if (banco != null && banco.sf != null) {
+				banco.sf.close();
+			}
+			if (isEmMemoria()) {
+				Connection conexao = DriverManager.getConnection(url, "sa", "");
+				try {
+					conexao.createStatement().execute("shutdown");
+				} finally {
+					conexao.close();
+				}
+			}
 		}
-		
-		return sf.openSession();
 	}
 
 	public Configuration getConfig() {
-		if(config == null) {
-			config = new AnnotationConfiguration()
-		    .addAnnotatedClass(Lance.class)
-		    .addAnnotatedClass(Leilao.class)
-		    .addAnnotatedClass(Usuario.class)
-			.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver")
-			.setProperty("hibernate.connection.url", "jdbc:hsqldb:caelum.db;shutdown=true")
-			.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect")
-			.setProperty("hibernate.connection.username", "sa")
-			.setProperty("hibernate.connection.password", "")
-			.setProperty("hibernate.show_sql", "true");
-		}
-		return config;
+		synchronized (bancos) {
+			Banco banco = banco();
+			if(banco.config == null) {
+				banco.config = new AnnotationConfiguration()
+			    .addAnnotatedClass(Lance.class)
+			    .addAnnotatedClass(Leilao.class)
+			    .addAnnotatedClass(Usuario.class)
+				.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver")
+				.setProperty("hibernate.connection.url", url)
+				.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect")
+				.setProperty("hibernate.connection.username", "sa")
+				.setProperty("hibernate.connection.password", "")
+				.setProperty("hibernate.connection.provider_class", ProvedorDeConexoesComCache.class.getName())
+				.setProperty(ProvedorDeConexoesComCache.TAMANHO_DO_CACHE, "50")
+				// a traducao das consultas nomeadas e feita (e medida) em getSessionFactory()
+				.setProperty("hibernate.query.startup_check", "false")
+				.setProperty("hibernate.generate_statistics", System.getProperty(ESTATISTICAS, "false"))
+				.setProperty("hibernate.show_sql", System.getProperty(MOSTRA_SQL, "true"));
+				if (isEmMemoria()) {
+					banco.config.setProperty("hibernate.hbm2ddl.auto", "create");
+				}
+			}
+			return banco.config;
+		}
+	}
+
+	private Banco banco() {
+		Banco banco = bancos.get(url);
+		if (banco == null) {
+			banco = new Banco();
+			bancos.put(url, banco);
+		}
+		return banco;
 	}
 }
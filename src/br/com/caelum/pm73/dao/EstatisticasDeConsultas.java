@@ -0,0 +1,140 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.spi.NamedQueryDefinition;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.stat.QueryStatistics;
+import org.hibernate.stat.Statistics;
+
+/**
+ * Contadores por consulta nomeada de uma SessionFactory: tempo de traducao do
+ * HQL, custo de preparar statements (medido pelo {@link CacheDeStatements}),
+ * reusos do cache e as estatisticas de execucao que o Hibernate guarda para
+ * cada consulta. Estas ultimas so sao coletadas com -Dcaelum.estatisticas=true
+ * (ver {@link CriadorDeSessao#ESTATISTICAS}). SQL que nao vem de uma consulta
+ * nomeada (nativo, ou com lista de parametros expandida) e contado pelo
+ * proprio texto.
+ */
+public class EstatisticasDeConsultas {
+
+	private final Map<String, Contador> preparacoes = new ConcurrentHashMap<String, Contador>();
+	private final Map<String, String> nomesPorSql = new ConcurrentHashMap<String, String>();
+	private final Map<String, Long> nanosTraduzindo = new ConcurrentHashMap<String, Long>();
+
+	public static class Contador {
+		private final AtomicLong preparacoes = new AtomicLong();
+		private final AtomicLong reusos = new AtomicLong();
+		private final AtomicLong nanosPreparando = new AtomicLong();
+
+		public long getPreparacoes() {
+			return preparacoes.get();
+		}
+
+		public long getReusos() {
+			return reusos.get();
+		}
+
+		public long getNanosPreparando() {
+			return nanosPreparando.get();
+		}
+	}
+
+	EstatisticasDeConsultas() {
+	}
+
+	// as estatisticas ficam no pool de conexoes da fabrica, onde os statements sao preparados
+	public static EstatisticasDeConsultas de(SessionFactory sf) {
+		ConnectionProvider provedor = ((SessionFactoryImplementor) sf).getServiceRegistry()
+				.getService(ConnectionProvider.class);
+		if (!(provedor instanceof ProvedorDeConexoesComCache)) {
+			throw new IllegalStateException("a SessionFactory nao usa o " + ProvedorDeConexoesComCache.class.getName());
+		}
+		return ((ProvedorDeConexoesComCache) provedor).getEstatisticas();
+	}
+
+	// traduz cada consulta nomeada uma vez, medindo o tempo, e guarda o SQL gerado para contar pelo nome
+	@SuppressWarnings("unchecked")
+	void traduz(SessionFactory sf, Map<String, NamedQueryDefinition> nomeadas) {
+		SessionFactoryImplementor fabrica = (SessionFactoryImplementor) sf;
+		for (Map.Entry<String, NamedQueryDefinition> consulta : nomeadas.entrySet()) {
+			long inicio = System.nanoTime();
+			HQLQueryPlan plano = fabrica.getQueryPlanCache().getHQLQueryPlan(consulta.getValue().getQueryString(),
+					false, Collections.EMPTY_MAP);
+			nanosTraduzindo.put(consulta.getKey(), System.nanoTime() - inicio);
+			for (String sql : plano.getSqlStrings()) {
+				nomesPorSql.put(sql, consulta.getKey());
+			}
+		}
+	}
+
+	void registraPreparacao(String sql, long nanos) {
+		Contador contador = contadorDe(sql);
+		contador.preparacoes.incrementAndGet();
+		contador.nanosPreparando.addAndGet(nanos);
+	}
+
+	void registraReuso(String sql) {
+		contadorDe(sql).reusos.incrementAndGet();
+	}
+
+	private Contador contadorDe(String sql) {
+		String nome = nomesPorSql.get(sql);
+		String chave = nome != null ? nome : sql;
+		Contador contador = preparacoes.get(chave);
+		if (contador == null) {
+			preparacoes.putIfAbsent(chave, new Contador());
+			contador = preparacoes.get(chave);
+		}
+		return contador;
+	}
+
+	// pelo nome da consulta, ou pelo SQL quando ele nao vem de uma consulta nomeada
+	public Map<String, Contador> porConsulta() {
+		return new TreeMap<String, Contador>(preparacoes);
+	}
+
+	public Contador daConsulta(String nome) {
+		return preparacoes.get(nome);
+	}
+
+	public long getNanosTraduzindo(String nome) {
+		Long nanos = nanosTraduzindo.get(nome);
+		return nanos == null ? 0L : nanos;
+	}
+
+	public static String relatorio(CriadorDeSessao criador) {
+		SessionFactory sf = criador.getSessionFactory();
+		Statistics estatisticas = sf.getStatistics();
+		EstatisticasDeConsultas consultas = de(sf);
+
+		StringBuilder relatorio = new StringBuilder();
+		Map<String, NamedQueryDefinition> nomeadas = new TreeMap<String, NamedQueryDefinition>(
+				criador.getConfig().getNamedQueries());
+		for (Map.Entry<String, NamedQueryDefinition> consulta : nomeadas.entrySet()) {
+			QueryStatistics execucoes = estatisticas.getQueryStatistics(consulta.getValue().getQueryString());
+			relatorio.append(consulta.getKey())
+					.append(": traducao=").append(consultas.getNanosTraduzindo(consulta.getKey()) / 1000).append("us")
+					.append(" execucoes=").append(execucoes.getExecutionCount())
+					.append(" linhas=").append(execucoes.getExecutionRowCount())
+					.append(" media=").append(execucoes.getExecutionAvgTime()).append("ms")
+					.append(" max=").append(execucoes.getExecutionMaxTime()).append("ms\n");
+		}
+
+		for (Map.Entry<String, Contador> consulta : consultas.porConsulta().entrySet()) {
+			Contador contador = consulta.getValue();
+			relatorio.append(consulta.getKey())
+					.append(": preparacoes=").append(contador.getPreparacoes())
+					.append(" reusos=").append(contador.getReusos())
+					.append(" preparando=").append(contador.getNanosPreparando() / 1000).append("us\n");
+		}
+		return relatorio.toString();
+	}
+}
@@ -0,0 +1,148 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import br.com.caelum.pm73.armazem.ArmazemDeLances;
+
+/**
+ * Foto das tabelas mapeadas, guardada em tabelas SNAP_* do proprio banco.
+ * Pensada para o perfil em memoria: uma massa de dados e carregada uma vez,
+ * fotografada, e restaurada antes de cada teste em vez de ser recriada pelos
+ * builders. As particoes LANCE_AAAAMM de {@link ParticoesDeLance} entram na
+ * foto; na restauracao as que nao estavam nela sao removidas e as que faltam
+ * sao recriadas. Atencao: o HSQLDB faz commit da transacao corrente ao tirar
+ * a foto, e ao restaurar quando alguma particao precisa ser criada ou removida.
+ */
+public class FotoDoBanco {
+
+	private static final String PREFIXO = "SNAP_";
+	// ordem de dependencia: quem e referenciado vem antes
+	private static final String[] TABELAS = { "USUARIO", "LEILAO", "LANCE" };
+
+	private final Session session;
+
+	public FotoDoBanco(Session session) {
+		this.session = session;
+	}
+
+	public void tira() {
+		session.flush();
+		session.doWork(new Work() {
+			public void execute(Connection conexao) throws SQLException {
+				tira(conexao);
+			}
+		});
+	}
+
+	// volta as tabelas ao estado da foto; o contexto da sessao e os caches do banco sao descartados
+	public void restaura() {
+		session.flush();
+		session.clear();
+		session.doWork(new Work() {
+			public void execute(Connection conexao) throws SQLException {
+				restaura(conexao);
+			}
+		});
+		ParticoesDeLance.esquece(session.getSessionFactory());
+		CacheDeConsultas.de(session.getSessionFactory()).invalidaTudo();
+		IndiceDeUsuarios.de(session.getSessionFactory()).limpa();
+		ArmazemDeLances.de(session.getSessionFactory()).limpa();
+	}
+
+	static void tira(Connection conexao) throws SQLException {
+		Statement comando = conexao.createStatement();
+		try {
+			for (String tabela : TABELAS) {
+				comando.execute("drop table " + PREFIXO + tabela + " if exists");
+				comando.execute("create table " + PREFIXO + tabela + " as (select * from " + tabela + ") with data");
+			}
+			for (String particao : particoesDaFoto(conexao)) {
+				comando.execute("drop table " + PREFIXO + particao);
+			}
+			for (String particao : ParticoesDeLance.particoes(conexao)) {
+				comando.execute("create table " + PREFIXO + particao + " as (select * from " + particao + ") with data");
+			}
+		} finally {
+			comando.close();
+		}
+	}
+
+	static void restaura(Connection conexao) throws SQLException {
+		List<String> daFoto = particoesDaFoto(conexao);
+		List<String> existentes = ParticoesDeLance.particoes(conexao);
+		Statement comando = conexao.createStatement();
+		try {
+			for (String particao : existentes) {
+				if (!daFoto.contains(particao)) {
+					comando.execute("drop table " + particao);
+				}
+			}
+			for (String particao : daFoto) {
+				if (!existentes.contains(particao)) {
+					ParticoesDeLance.criaParticao(conexao, particao);
+				}
+			}
+
+			comando.execute("set database referential integrity false");
+			try {
+				for (int i = TABELAS.length - 1; i >= 0; i--) {
+					comando.executeUpdate("delete from " + TABELAS[i]);
+				}
+				for (String particao : daFoto) {
+					comando.executeUpdate("delete from " + particao);
+					comando.executeUpdate("insert into " + particao + " select * from " + PREFIXO + particao);
+				}
+				for (String tabela : TABELAS) {
+					comando.executeUpdate("insert into " + tabela + " select * from " + PREFIXO + tabela);
+					comando.execute("alter table " + tabela + " alter column ID restart with "
+							+ proximoId(comando, tabela, tabela.equals("LANCE") ? daFoto : Collections.<String> emptyList()));
+				}
+			} finally {
+				comando.execute("set database referential integrity true");
+			}
+		} finally {
+			comando.close();
+		}
+	}
+
+	// os lances arquivados mantem o id, entao a sequencia de LANCE continua depois deles tambem
+	private static int proximoId(Statement comando, String tabela, List<String> particoes) throws SQLException {
+		StringBuilder ids = new StringBuilder("select ID from " + tabela);
+		for (String particao : particoes) {
+			ids.append(" union all select ID from ").append(particao);
+		}
+		ResultSet resultado = comando.executeQuery("select coalesce(max(ID), 0) + 1 from (" + ids + ")");
+		try {
+			resultado.next();
+			return resultado.getInt(1);
+		} finally {
+			resultado.close();
+		}
+	}
+
+	// nomes das particoes fotografadas, sem o prefixo da foto
+	private static List<String> particoesDaFoto(Connection conexao) throws SQLException {
+		List<String> nomes = new ArrayList<String>();
+		Statement consulta = conexao.createStatement();
+		try {
+			ResultSet tabelas = consulta.executeQuery("select TABLE_NAME from INFORMATION_SCHEMA.TABLES "
+					+ "where TABLE_SCHEMA = 'PUBLIC' and TABLE_NAME like 'SNAP\\_LANCE\\_%' escape '\\' "
+					+ "order by TABLE_NAME");
+			while (tabelas.next()) {
+				nomes.add(tabelas.getString(1).substring(PREFIXO.length()));
+			}
+		} finally {
+			consulta.close();
+		}
+		return nomes;
+	}
+}
@@ -0,0 +1,81 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.hibernate.SessionFactory;
+
+/**
+ * Indice em memoria (nome, email) -> id dos usuarios resolvidos mais
+ * recentemente, compartilhado entre as sessoes de um mesmo banco. So
+ * recebe usuarios de transacoes ja confirmadas, para nunca devolver o id
+ * de uma insercao desfeita por rollback.
+ */
+class IndiceDeUsuarios {
+
+	private static final Map<SessionFactory, IndiceDeUsuarios> porBanco = new WeakHashMap<SessionFactory, IndiceDeUsuarios>();
+
+	private final LinkedHashMap<String, Integer> ids;
+	// inverso de ids, para remover por id sem percorrer o indice
+	private final Map<Integer, String> chaves = new HashMap<Integer, String>();
+
+	IndiceDeUsuarios(final int capacidade) {
+		this.ids = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> maisAntigo) {
+				if (size() > capacidade) {
+					chaves.remove(maisAntigo.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	static IndiceDeUsuarios de(SessionFactory sf) {
+		synchronized (porBanco) {
+			IndiceDeUsuarios indice = porBanco.get(sf);
+			if (indice == null) {
+				indice = new IndiceDeUsuarios(10000);
+				porBanco.put(sf, indice);
+			}
+			return indice;
+		}
+	}
+
+	static String chave(String nome, String email) {
+		return nome + '\u0000' + email;
+	}
+
+	synchronized Integer busca(String chave) {
+		return ids.get(chave);
+	}
+
+	synchronized void guarda(Map<String, Integer> resolvidos) {
+		for (Map.Entry<String, Integer> resolvido : resolvidos.entrySet()) {
+			remove(resolvido.getValue());
+			Integer anterior = ids.remove(resolvido.getKey());
+			if (anterior != null) {
+				chaves.remove(anterior);
+			}
+			chaves.put(resolvido.getValue(), resolvido.getKey());
+			ids.put(resolvido.getKey(), resolvido.getValue());
+		}
+	}
+
+	synchronized void remove(int id) {
+		String chave = chaves.remove(id);
+		if (chave != null) {
+			ids.remove(chave);
+		}
+	}
+
+	synchronized void limpa() {
+		ids.clear();
+		chaves.clear();
+	}
+}
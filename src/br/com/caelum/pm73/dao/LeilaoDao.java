@@ -1,28 +1,84 @@
 package br.com.caelum.pm73.dao;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 
+import br.com.caelum.pm73.armazem.ArmazemDeLances;
 import br.com.caelum.pm73.dominio.Lance;
 import br.com.caelum.pm73.dominio.Leilao;
 import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.eventos.FilaDeEventos;
+import br.com.caelum.pm73.eventos.PublicadorDeEventos;
+import br.com.caelum.pm73.eventos.TipoDeEvento;
+import br.com.caelum.pm73.relatorio.LanceResumido;
 
 public class LeilaoDao {
 
+	private static final int TAMANHO_DO_BLOCO = 1000;
+
 	private final Session session;
+	private final PublicadorDeEventos eventos;
+	private final CacheDeConsultas cache;
+	private final ModoDeLote lote;
+	private final ParticoesDeLance particoes;
+	private final ArmazemDeLances armazem;
 
 	public LeilaoDao(Session session) {
+		this(session, ModoDeLote.SEM_LIMITE);
+	}
+
+	public LeilaoDao(Session session, ModoDeLote lote) {
 		this.session = session;
+		this.lote = lote;
+		this.particoes = new ParticoesDeLance(session);
+		this.eventos = new PublicadorDeEventos(session, FilaDeEventos.de(session.getSessionFactory()));
+		this.cache = CacheDeConsultas.de(session.getSessionFactory());
+		this.armazem = ArmazemDeLances.de(session.getSessionFactory());
 	}
 
 	public void salvar(Leilao leilao) {
+		// o save do leilao ja cascateia para os lances, entao os novos sao separados antes
+		boolean novo = !session.contains(leilao);
+		List<Lance> lancesNovos = new ArrayList<Lance>();
+		for (Lance lance : leilao.getLances()) {
+			if (!session.contains(lance)) {
+				lancesNovos.add(lance);
+			}
+		}
+
 		session.save(leilao);
+		if (novo) {
+			eventos.publica(TipoDeEvento.LEILAO_CRIADO, leilao.getId());
+		}
 
-		for (Lance lance : leilao.getLances()) {
+		for (Lance lance : lancesNovos) {
 			session.save(lance);
+			eventos.publica(TipoDeEvento.LANCE_ADICIONADO, lance.getId());
+			armazem.gravado(session, lance);
+		}
+
+		if (novo) {
+			cache.invalida(session, cache.getPorPeriodo(), leilao.getId(), millis(leilao.getDataAbertura()));
 		}
+		if (novo || !lancesNovos.isEmpty()) {
+			cache.invalida(session, cache.getDisputadosEntre(), leilao.getId(), valor(leilao.getValorInicial()));
+		}
+		lote.depoisDeEscrever(session);
 	}
 
 	public Leilao porId(int id) {
@@ -31,7 +87,7 @@ public class LeilaoDao {
 
 	@SuppressWarnings("unchecked")
 	public List<Leilao> novos() {
-		return session.createQuery("from Leilao l where usado = false").list();
+		return session.getNamedQuery("Leilao.novos").list();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -39,52 +95,275 @@ public class LeilaoDao {
 		Calendar seteDiasAtras = Calendar.getInstance();
 		seteDiasAtras.add(Calendar.DAY_OF_MONTH, -7);
 
-		return session.createQuery("from Leilao l where dataAbertura < :data").setParameter("data", seteDiasAtras)
-				.list();
+		return session.getNamedQuery("Leilao.antigos").setParameter("data", seteDiasAtras).list();
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<Leilao> porPeriodo(Calendar inicio, Calendar fim) {
-		return session
-				.createQuery("from Leilao l where l.dataAbertura " + "between :inicio and :fim and l.encerrado = false")
-				.setParameter("inicio", inicio).setParameter("fim", fim).list();
+		return emCache(cache.getPorPeriodo(), session.getNamedQuery("Leilao.porPeriodo")
+				.setParameter("inicio", inicio).setParameter("fim", fim), millis(inicio), millis(fim));
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<Leilao> disputadosEntre(double inicio, double fim) {
-		return session.createQuery("from Leilao l where l.valorInicial "
-				+ "between :inicio and :fim and l.encerrado = false " + "and size(l.lances) > 3")
-				.setParameter("inicio", inicio).setParameter("fim", fim).list();
+		return emCache(cache.getDisputadosEntre(), session.getNamedQuery("Leilao.disputadosEntre")
+				.setParameter("inicio", inicio).setParameter("fim", fim), inicio, fim);
+	}
+
+	// o cache guarda so os ids; num acerto os leiloes sao lidos pela chave, na ordem original
+	@SuppressWarnings("unchecked")
+	private List<Leilao> emCache(RegiaoDeCache regiao, Query consulta, double inicio, double fim) {
+		if (cache.temEscritasPendentes(session, regiao)) {
+			return consulta.list();
+		}
+
+		List<Object> chave = Arrays.<Object> asList(inicio, fim);
+		List<Integer> ids = regiao.busca(chave);
+
+		if (ids != null && ids.isEmpty()) {
+			return new ArrayList<Leilao>();
+		}
+		if (ids != null) {
+			Map<Integer, Leilao> porId = new HashMap<Integer, Leilao>();
+			for (Leilao leilao : (List<Leilao>) session.getNamedQuery("Leilao.porIds")
+					.setParameterList("ids", ids).list()) {
+				porId.put(leilao.getId(), leilao);
+			}
+			// algum leilao sumiu por um caminho que nao passou pelo DAO: consulta de novo
+			if (porId.size() == ids.size()) {
+				List<Leilao> leiloes = new ArrayList<Leilao>(ids.size());
+				for (Integer id : ids) {
+					leiloes.add(porId.get(id));
+				}
+				return leiloes;
+			}
+		}
+
+		long versao = regiao.getVersao();
+		List<Leilao> leiloes = consulta.list();
+
+		List<Integer> encontrados = new ArrayList<Integer>(leiloes.size());
+		for (Leilao leilao : leiloes) {
+			encontrados.add(leilao.getId());
+		}
+		regiao.guarda(chave, versao, inicio, fim, encontrados);
+		return leiloes;
+	}
+
+	private static double millis(Calendar data) {
+		return data == null ? Double.NaN : data.getTimeInMillis();
+	}
+
+	private static double valor(Double valor) {
+		return valor == null ? Double.NaN : valor;
 	}
 
 	public Long total() {
-		return (Long) session.createQuery("select count(l) from Leilao l where l.encerrado = false").uniqueResult();
+		return (Long) session.getNamedQuery("Leilao.total").uniqueResult();
 	}
 
 	public void atualiza(Leilao leilao) {
+		boolean encerrou = leilao.isEncerrado() && !encerradoNoBanco(leilao.getId());
 		session.merge(leilao);
+		cache.invalida(session, cache.getPorPeriodo(), leilao.getId(), millis(leilao.getDataAbertura()));
+		cache.invalida(session, cache.getDisputadosEntre(), leilao.getId(), valor(leilao.getValorInicial()));
+		armazem.atualizado(session, leilao);
+		eventos.publica(TipoDeEvento.LEILAO_ATUALIZADO, leilao.getId());
+		if (encerrou) {
+			eventos.publica(TipoDeEvento.LEILAO_ENCERRADO, leilao.getId());
+		}
+		lote.depoisDeEscrever(session);
+	}
+
+	// estado gravado, sem flush: o leilao pode ser a propria instancia gerenciada, ja alterada
+	private boolean encerradoNoBanco(Integer id) {
+		if (id == null) {
+			return false;
+		}
+		Boolean encerrado = (Boolean) session.getNamedQuery("Leilao.encerradoPorId").setParameter("id", id)
+				.setFlushMode(FlushMode.MANUAL).uniqueResult();
+		return encerrado != null && encerrado;
 	}
 
 	public void deleta(Leilao leilao) {
 		session.delete(leilao);
+		particoes.removeLancesDosLeiloes(Collections.singletonList(leilao.getId()));
+		cache.invalida(session, cache.getPorPeriodo(), leilao.getId(), Double.NaN);
+		cache.invalida(session, cache.getDisputadosEntre(), leilao.getId(), Double.NaN);
+		eventos.publica(TipoDeEvento.LEILAO_DELETADO, leilao.getId());
+		lote.depoisDeEscrever(session);
 	}
 
+	@SuppressWarnings("unchecked")
 	public void deletaEncerrados() {
-		session.createQuery("delete from Leilao l where l.encerrado = true").executeUpdate();
+		List<Integer> ids = session.getNamedQuery("Leilao.idsEncerrados").list();
+		session.getNamedQuery("Leilao.deletaEncerrados").executeUpdate();
+		particoes.removeLancesDosLeiloes(ids);
+		cache.invalida(session, cache.getPorPeriodo(), ids, Double.NaN);
+		cache.invalida(session, cache.getDisputadosEntre(), ids, Double.NaN);
+		for (Integer id : ids) {
+			eventos.publica(TipoDeEvento.LEILAO_DELETADO, id);
+		}
+	}
+
+	// encerra de uma vez, com um UPDATE por bloco de ids, sem carregar os leiloes; o prazo e
+	// conferido no banco, entao um leilao prorrogado depois de agendado continua aberto.
+	// So os que de fato encerraram sao invalidados e geram LEILAO_ENCERRADO
+	@SuppressWarnings("unchecked")
+	public int encerra(Collection<Integer> ids, Calendar agora) {
+		List<Integer> todos = new ArrayList<Integer>(ids);
+		List<Integer> abertos = new ArrayList<Integer>();
+		for (int inicio = 0; inicio < todos.size(); inicio += TAMANHO_DO_BLOCO) {
+			List<Integer> bloco = todos.subList(inicio, Math.min(inicio + TAMANHO_DO_BLOCO, todos.size()));
+			List<Integer> abertosDoBloco = session.getNamedQuery("Leilao.abertosPorIds")
+					.setParameterList("ids", bloco).setParameter("agora", agora).list();
+			if (!abertosDoBloco.isEmpty()) {
+				session.getNamedQuery("Leilao.encerraPorIds").setParameterList("ids", abertosDoBloco)
+						.setParameter("agora", agora).executeUpdate();
+				abertos.addAll(abertosDoBloco);
+			}
+		}
+		cache.invalida(session, cache.getPorPeriodo(), abertos, Double.NaN);
+		cache.invalida(session, cache.getDisputadosEntre(), abertos, Double.NaN);
+		for (Integer id : abertos) {
+			eventos.publica(TipoDeEvento.LEILAO_ENCERRADO, id);
+		}
+		return abertos.size();
+	}
+
+	// prazo de encerramento de cada leilao aberto que tem um
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Calendar> pendentesDeEncerramento() {
+		return prazos(session.getNamedQuery("Leilao.pendentesDeEncerramento").list());
+	}
+
+	// o mesmo, restrito aos ids informados; quem nao aparece ja encerrou, foi removido ou nao tem prazo
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Calendar> pendentesDeEncerramento(Collection<Integer> ids) {
+		List<Integer> todos = new ArrayList<Integer>(ids);
+		Map<Integer, Calendar> prazos = new HashMap<Integer, Calendar>();
+		for (int inicio = 0; inicio < todos.size(); inicio += TAMANHO_DO_BLOCO) {
+			List<Integer> bloco = todos.subList(inicio, Math.min(inicio + TAMANHO_DO_BLOCO, todos.size()));
+			prazos.putAll(prazos(session.getNamedQuery("Leilao.pendentesDeEncerramentoPorIds")
+					.setParameterList("ids", bloco).list()));
+		}
+		return prazos;
+	}
+
+	private static Map<Integer, Calendar> prazos(List<Object[]> linhas) {
+		Map<Integer, Calendar> prazos = new HashMap<Integer, Calendar>();
+		for (Object[] linha : linhas) {
+			prazos.put((Integer) linha[0], (Calendar) linha[1]);
+		}
+		return prazos;
 	}
 
 	// devolve a lista de todos os leiles em que o usurio deu pelo menos um lance:
 	//corrigido com o uso do ditinct para no haver duplicaes
 	@SuppressWarnings("unchecked")
 	public List<Leilao> listaLeiloesDoUsuario(Usuario usuario) {
-		return session
-				.createQuery("select distinct lance.leilao " + "from Lance lance " + "where lance.usuario = :usuario")
+		if (particoes.existem()) {
+			return listaLeiloesDosUsuarios(Collections.singleton(usuario)).get(usuario);
+		}
+		return session.getNamedQuery("Lance.leiloesDoUsuario")
 				.setParameter("usuario", usuario).list();
 	}
 
+	// quem nao deu lance tem media 0, como em Estatistica.getMedia()
 	public double getValorInicialMedioDoUsuario(Usuario usuario) {
-		return (Double) session.createQuery(
-				"select avg(lance.leilao.valorInicial) " + "from Lance lance " + "where lance.usuario = :usuario")
+		if (particoes.existem()) {
+			return getValorInicialMedioDosUsuarios(Collections.singleton(usuario)).get(usuario);
+		}
+		Double media = (Double) session.getNamedQuery("Lance.valorInicialMedioDoUsuario")
 				.setParameter("usuario", usuario).uniqueResult();
+		return media == null ? 0.0 : media;
+	}
+
+	// uma consulta por bloco de usuarios no lugar de uma por usuario; quem nao deu lance recebe lista vazia
+	@SuppressWarnings("unchecked")
+	public Map<Usuario, List<Leilao>> listaLeiloesDosUsuarios(Collection<Usuario> usuarios) {
+		// com lances arquivados, a consulta passa pela uniao das particoes
+		boolean arquivados = particoes.existem();
+		Map<Integer, List<Leilao>> porId = new HashMap<Integer, List<Leilao>>();
+		for (List<Integer> bloco : blocosDeIds(usuarios)) {
+			if (arquivados) {
+				porId.putAll(particoes.leiloesPorUsuario(bloco, null, null));
+				continue;
+			}
+			List<Object[]> linhas = session.getNamedQuery("Lance.leiloesDosUsuarios")
+					.setParameterList("usuarios", bloco).list();
+			for (Object[] linha : linhas) {
+				List<Leilao> leiloes = porId.get(linha[0]);
+				if (leiloes == null) {
+					leiloes = new ArrayList<Leilao>();
+					porId.put((Integer) linha[0], leiloes);
+				}
+				leiloes.add((Leilao) linha[1]);
+			}
+		}
+
+		Map<Usuario, List<Leilao>> leiloes = new LinkedHashMap<Usuario, List<Leilao>>();
+		for (Usuario usuario : usuarios) {
+			List<Leilao> doUsuario = porId.get(usuario.getId());
+			leiloes.put(usuario, doUsuario == null ? new ArrayList<Leilao>() : doUsuario);
+		}
+		return leiloes;
+	}
+
+	// mesma semantica de getValorInicialMedioDoUsuario(), com um GROUP BY por bloco de usuarios
+	@SuppressWarnings("unchecked")
+	public Map<Usuario, Double> getValorInicialMedioDosUsuarios(Collection<Usuario> usuarios) {
+		boolean arquivados = particoes.existem();
+		Map<Integer, Double> porId = new HashMap<Integer, Double>();
+		for (List<Integer> bloco : blocosDeIds(usuarios)) {
+			if (arquivados) {
+				porId.putAll(particoes.valorInicialMedioPorUsuario(bloco, null, null));
+				continue;
+			}
+			List<Object[]> linhas = session.getNamedQuery("Lance.valorInicialMedioDosUsuarios")
+					.setParameterList("usuarios", bloco).list();
+			for (Object[] linha : linhas) {
+				porId.put((Integer) linha[0], (Double) linha[1]);
+			}
+		}
+
+		Map<Usuario, Double> medias = new LinkedHashMap<Usuario, Double>();
+		for (Usuario usuario : usuarios) {
+			Double media = porId.get(usuario.getId());
+			medias.put(usuario, media == null ? 0.0 : media);
+		}
+		return medias;
+	}
+
+	private static List<List<Integer>> blocosDeIds(Collection<Usuario> usuarios) {
+		Set<Integer> distintos = new LinkedHashSet<Integer>();
+		for (Usuario usuario : usuarios) {
+			distintos.add(usuario.getId());
+		}
+		List<Integer> ids = new ArrayList<Integer>(distintos);
+
+		List<List<Integer>> blocos = new ArrayList<List<Integer>>();
+		for (int inicio = 0; inicio < ids.size(); inicio += TAMANHO_DO_BLOCO) {
+			blocos.add(ids.subList(inicio, Math.min(inicio + TAMANHO_DO_BLOCO, ids.size())));
+		}
+		return blocos;
+	}
+
+	// percorre todos os lances uma unica vez, sem carregar as entidades, para os relatorios;
+	// com lances arquivados, le a uniao das particoes, como as consultas por usuario
+	public List<LanceResumido> lancesResumidos() {
+		if (particoes.existem()) {
+			return particoes.lancesResumidos();
+		}
+		ScrollableResults linhas = session.getNamedQuery("Lance.resumidos")
+				.setReadOnly(true).setFetchSize(1000).scroll(ScrollMode.FORWARD_ONLY);
+
+		List<LanceResumido> lances = new ArrayList<LanceResumido>();
+		try {
+			while (linhas.next()) {
+				lances.add(LanceResumido.deLinha(linhas.get()));
+			}
+		} finally {
+			linhas.close();
+		}
+		return lances;
 	}
 }
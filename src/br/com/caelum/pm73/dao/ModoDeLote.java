@@ -0,0 +1,87 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+
+/**
+ * Limita o contexto de persistencia de uma sessao longa, como a de um job em
+ * lote: quando o numero de entidades gerenciadas chega ao limite, os DAOs fazem
+ * flush e clear, e cada flush passa a verificar poucas entidades em vez de
+ * todas as que a sessao ja viu.
+ *
+ * As leituras dos DAOs continuam devolvendo entidades gravaveis, porque um job
+ * costuma ler, alterar e chamar atualiza() na mesma sessao. Para leituras sem
+ * snapshots, o job usa um DAO sobre {@link CriadorDeSessao#getSessaoSomenteLeitura()};
+ * o que ele devolve pode ser passado ao atualiza() do DAO de escrita, que faz
+ * merge na sessao dele.
+ *
+ * Depois de um clear as entidades carregadas antes ficam desanexadas: o job nao
+ * deve reaproveita-las em salvar() ou atualizar o seu estado esperando que o
+ * proximo flush as grave.
+ */
+public class ModoDeLote {
+
+	// sem limite: o comportamento padrao dos DAOs
+	public static final ModoDeLote SEM_LIMITE = new ModoDeLote(Integer.MAX_VALUE);
+
+	private final int limiteDeEntidades;
+
+	private int maiorContexto;
+	private int limpezas;
+	private long nanosEmFlush;
+
+	public ModoDeLote(int limiteDeEntidades) {
+		if (limiteDeEntidades <= 0) {
+			throw new IllegalArgumentException("limite de entidades deve ser positivo");
+		}
+		this.limiteDeEntidades = limiteDeEntidades;
+	}
+
+	void depoisDeEscrever(Session session) {
+		if (this == SEM_LIMITE) {
+			return;
+		}
+
+		int entidades = session.getStatistics().getEntityCount();
+		synchronized (this) {
+			maiorContexto = Math.max(maiorContexto, entidades);
+		}
+		if (entidades < limiteDeEntidades) {
+			return;
+		}
+
+		long inicio = System.nanoTime();
+		session.flush();
+		session.clear();
+		long duracao = System.nanoTime() - inicio;
+
+		synchronized (this) {
+			limpezas++;
+			nanosEmFlush += duracao;
+		}
+	}
+
+	public int getLimiteDeEntidades() {
+		return limiteDeEntidades;
+	}
+
+	public synchronized int getMaiorContexto() {
+		return maiorContexto;
+	}
+
+	public synchronized int getLimpezas() {
+		return limpezas;
+	}
+
+	public synchronized long getMillisEmFlush() {
+		return TimeUnit.NANOSECONDS.toMillis(nanosEmFlush);
+	}
+
+	@Override
+	public synchronized String toString() {
+		long mediaEmMicros = limpezas == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(nanosEmFlush / limpezas);
+		return String.format("limite=%d maior contexto=%d flush+clear=%d tempo medio=%dus", limiteDeEntidades,
+				maiorContexto, limpezas, mediaEmMicros);
+	}
+}
@@ -0,0 +1,469 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.jdbc.ReturningWork;
+
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.relatorio.LanceResumido;
+
+/**
+ * Particoes mensais da tabela de lances. A tabela LANCE, mapeada pelo
+ * Hibernate, continua sendo a particao quente; os lances antigos de leiloes
+ * ja encerrados sao movidos para tabelas CACHED (em disco) LANCE_AAAAMM.
+ * Leiloes abertos nunca perdem lances, entao disputadosEntre() e
+ * Leilao.getLances() continuam corretos para eles. Depois do primeiro
+ * arquivamento, as consultas por usuario do {@link LeilaoDao} passam por aqui
+ * e leem a uniao da particao quente com todas as frias; as consultas por
+ * periodo desta classe leem apenas as particoes do intervalo.
+ *
+ * A lista de particoes e lida do INFORMATION_SCHEMA uma vez por SessionFactory
+ * e refeita por arquiva() e destaca(); particoes criadas ou removidas por fora
+ * so aparecem depois de {@link #esquece(SessionFactory)}.
+ */
+public class ParticoesDeLance {
+
+	private static final String PREFIXO = "LANCE_";
+	private static final int TAMANHO_DO_BLOCO = 1000;
+	private static final String COLUNAS = "ID, DATA, VALOR, LEILAO_ID, USUARIO_ID";
+	private static final String DE_LEILOES_ENCERRADOS = "DATA >= ? and DATA < ? "
+			+ "and LEILAO_ID in (select ID from LEILAO where ENCERRADO = true)";
+
+	private static final Map<SessionFactory, Catalogo> catalogos = new WeakHashMap<SessionFactory, Catalogo>();
+
+	// a versao impede que uma leitura anterior a um esquece() seja guardada depois dele
+	private static class Catalogo {
+		long versao;
+		List<String> nomes;
+	}
+
+	private final Session session;
+
+	public ParticoesDeLance(Session session) {
+		this.session = session;
+	}
+
+	// nomes das particoes frias existentes, em ordem cronologica
+	public List<String> particoes() {
+		Catalogo catalogo = catalogo(session.getSessionFactory());
+		long versao;
+		synchronized (catalogo) {
+			if (catalogo.nomes != null) {
+				return catalogo.nomes;
+			}
+			versao = catalogo.versao;
+		}
+
+		List<String> nomes = Collections.unmodifiableList(session.doReturningWork(new ReturningWork<List<String>>() {
+			public List<String> execute(Connection conexao) throws SQLException {
+				return particoes(conexao);
+			}
+		}));
+		synchronized (catalogo) {
+			if (catalogo.versao == versao) {
+				catalogo.nomes = nomes;
+			}
+		}
+		return nomes;
+	}
+
+	// descarta a lista guardada; a proxima consulta rele o INFORMATION_SCHEMA
+	public static void esquece(SessionFactory sf) {
+		Catalogo catalogo = catalogo(sf);
+		synchronized (catalogo) {
+			catalogo.versao++;
+			catalogo.nomes = null;
+		}
+	}
+
+	private static Catalogo catalogo(SessionFactory sf) {
+		synchronized (catalogos) {
+			Catalogo catalogo = catalogos.get(sf);
+			if (catalogo == null) {
+				catalogo = new Catalogo();
+				catalogos.put(sf, catalogo);
+			}
+			return catalogo;
+		}
+	}
+
+	/**
+	 * Move para as particoes mensais os lances de leiloes encerrados feitos
+	 * antes do mes de 'limite'. Atencao: o HSQLDB faz commit da transacao
+	 * corrente ao criar uma particao nova.
+	 */
+	public int arquiva(Calendar limite) {
+		session.flush();
+		Calendar inicioDoMesLimite = inicioDoMes(limite);
+
+		int movidos;
+		try {
+			movidos = arquivaAntesDe(inicioDoMesLimite);
+		} finally {
+			esquece(session.getSessionFactory());
+		}
+
+		session.clear();
+		return movidos;
+	}
+
+	private int arquivaAntesDe(final Calendar inicioDoMesLimite) {
+		return session.doReturningWork(new ReturningWork<Integer>() {
+			public Integer execute(Connection conexao) throws SQLException {
+				List<Integer> meses = new ArrayList<Integer>();
+				PreparedStatement consulta = conexao.prepareStatement("select distinct year(DATA) * 100 + month(DATA) "
+						+ "from LANCE where DATA < ? and LEILAO_ID in (select ID from LEILAO where ENCERRADO = true)");
+				try {
+					consulta.setTimestamp(1, new Timestamp(inicioDoMesLimite.getTimeInMillis()));
+					ResultSet resultado = consulta.executeQuery();
+					while (resultado.next()) {
+						meses.add(resultado.getInt(1));
+					}
+				} finally {
+					consulta.close();
+				}
+
+				List<String> existentes = particoes(conexao);
+				int total = 0;
+				for (int mes : meses) {
+					String particao = PREFIXO + mes;
+					if (!existentes.contains(particao)) {
+						criaParticao(conexao, particao);
+					}
+					total += move(conexao, particao, mes);
+				}
+				return total;
+			}
+		});
+	}
+
+	public boolean existem() {
+		return !particoes().isEmpty();
+	}
+
+	public List<Leilao> leiloesDoUsuario(Usuario usuario, Calendar inicio, Calendar fim) {
+		List<Leilao> leiloes = leiloesPorUsuario(Collections.singleton(usuario.getId()), inicio, fim).get(usuario.getId());
+		return leiloes == null ? new ArrayList<Leilao>() : leiloes;
+	}
+
+	// null quando o usuario nao deu lances no periodo
+	public Double valorInicialMedioDoUsuario(Usuario usuario, Calendar inicio, Calendar fim) {
+		return valorInicialMedioPorUsuario(Collections.singleton(usuario.getId()), inicio, fim).get(usuario.getId());
+	}
+
+	// sem periodo (inicio e fim nulos) todas as particoes sao lidas
+	@SuppressWarnings("unchecked")
+	Map<Integer, List<Leilao>> leiloesPorUsuario(Collection<Integer> usuarios, Calendar inicio, Calendar fim) {
+		List<Object[]> linhas = consulta(sqlDosLeiloesPorUsuario(uniaoDasParticoes(inicio, fim)), usuarios, inicio, fim)
+				.list();
+
+		Set<Integer> ids = new HashSet<Integer>();
+		for (Object[] linha : linhas) {
+			ids.add(((Number) linha[1]).intValue());
+		}
+		Map<Integer, Leilao> leiloes = new HashMap<Integer, Leilao>();
+		List<Integer> todos = new ArrayList<Integer>(ids);
+		for (int inicioDoBloco = 0; inicioDoBloco < todos.size(); inicioDoBloco += TAMANHO_DO_BLOCO) {
+			List<Integer> bloco = todos.subList(inicioDoBloco, Math.min(inicioDoBloco + TAMANHO_DO_BLOCO, todos.size()));
+			for (Leilao leilao : (List<Leilao>) session.getNamedQuery("Leilao.porIds").setParameterList("ids", bloco)
+					.list()) {
+				leiloes.put(leilao.getId(), leilao);
+			}
+		}
+
+		Map<Integer, List<Leilao>> porUsuario = new HashMap<Integer, List<Leilao>>();
+		for (Object[] linha : linhas) {
+			Integer usuario = ((Number) linha[0]).intValue();
+			List<Leilao> doUsuario = porUsuario.get(usuario);
+			if (doUsuario == null) {
+				doUsuario = new ArrayList<Leilao>();
+				porUsuario.put(usuario, doUsuario);
+			}
+			doUsuario.add(leiloes.get(((Number) linha[1]).intValue()));
+		}
+		return porUsuario;
+	}
+
+	@SuppressWarnings("unchecked")
+	Map<Integer, Double> valorInicialMedioPorUsuario(Collection<Integer> usuarios, Calendar inicio, Calendar fim) {
+		List<Object[]> linhas = consulta(sqlDoValorInicialMedio(uniaoDasParticoes(inicio, fim)), usuarios, inicio, fim)
+				.list();
+
+		Map<Integer, Double> medias = new HashMap<Integer, Double>();
+		for (Object[] linha : linhas) {
+			// avg e nulo quando nenhum leilao do usuario tem valor inicial; o caminho HQL devolve 0
+			Number media = (Number) linha[1];
+			medias.put(((Number) linha[0]).intValue(), media == null ? 0.0 : media.doubleValue());
+		}
+		return medias;
+	}
+
+	// mesmas colunas de Lance.resumidos, lidas da particao quente e de todas as frias
+	List<LanceResumido> lancesResumidos() {
+		session.flush();
+		final String sql = sqlDosLancesResumidos(particoes());
+
+		return session.doReturningWork(new ReturningWork<List<LanceResumido>>() {
+			public List<LanceResumido> execute(Connection conexao) throws SQLException {
+				List<LanceResumido> lances = new ArrayList<LanceResumido>();
+				Statement consulta = conexao.createStatement();
+				try {
+					consulta.setFetchSize(1000);
+					ResultSet resultado = consulta.executeQuery(sql);
+					Object[] linha = new Object[8];
+					while (resultado.next()) {
+						for (int coluna = 0; coluna < linha.length; coluna++) {
+							linha[coluna] = resultado.getObject(coluna + 1);
+						}
+						linha[6] = calendario((Timestamp) linha[6]);
+						lances.add(LanceResumido.deLinha(linha));
+					}
+				} finally {
+					consulta.close();
+				}
+				return lances;
+			}
+		});
+	}
+
+	private static Calendar calendario(Timestamp momento) {
+		if (momento == null) {
+			return null;
+		}
+		Calendar data = Calendar.getInstance();
+		data.setTimeInMillis(momento.getTime());
+		return data;
+	}
+
+	// as particoes nao tem chave estrangeira para LEILAO, entao os lances arquivados sao removidos aqui
+	void removeLancesDosLeiloes(Collection<Integer> leiloes) {
+		if (leiloes.isEmpty()) {
+			return;
+		}
+		List<Integer> todos = new ArrayList<Integer>(leiloes);
+		for (String particao : particoes()) {
+			for (int inicio = 0; inicio < todos.size(); inicio += TAMANHO_DO_BLOCO) {
+				session.createSQLQuery(sqlDaRemocao(particao))
+						.setParameterList("leiloes", todos.subList(inicio, Math.min(inicio + TAMANHO_DO_BLOCO, todos.size())))
+						.executeUpdate();
+			}
+		}
+	}
+
+	/**
+	 * Copia uma particao fria para um banco HSQLDB proprio (por exemplo
+	 * "lances/2023-01") e a remove deste banco. Devolve o numero de lances
+	 * copiados.
+	 */
+	public int destaca(int mes, String arquivo) {
+		try {
+			return destacaParticao(mes, arquivo);
+		} finally {
+			esquece(session.getSessionFactory());
+		}
+	}
+
+	private int destacaParticao(final int mes, final String arquivo) {
+		return session.doReturningWork(new ReturningWork<Integer>() {
+			public Integer execute(Connection conexao) throws SQLException {
+				String particao = PREFIXO + mes;
+				if (!particoes(conexao).contains(particao)) {
+					throw new IllegalArgumentException("particao inexistente: " + particao);
+				}
+
+				Connection destino = DriverManager.getConnection("jdbc:hsqldb:file:" + arquivo, "sa", "");
+				int copiados = 0;
+				try {
+					criaParticao(destino, particao);
+					PreparedStatement insercao = destino.prepareStatement("insert into " + particao + " (" + COLUNAS
+							+ ") values (?, ?, ?, ?, ?)");
+					Statement leitura = conexao.createStatement();
+					try {
+						ResultSet lances = leitura.executeQuery("select " + COLUNAS + " from " + particao);
+						while (lances.next()) {
+							for (int coluna = 1; coluna <= 5; coluna++) {
+								insercao.setObject(coluna, lances.getObject(coluna));
+							}
+							insercao.addBatch();
+							if (++copiados % 1000 == 0) {
+								insercao.executeBatch();
+							}
+						}
+						insercao.executeBatch();
+					} finally {
+						leitura.close();
+						insercao.close();
+					}
+					executa(destino, "shutdown compact");
+				} finally {
+					destino.close();
+				}
+
+				executa(conexao, "drop table " + particao);
+				return copiados;
+			}
+		});
+	}
+
+	private String uniaoDasParticoes(Calendar inicio, Calendar fim) {
+		List<String> lidas = new ArrayList<String>();
+		for (String particao : particoes()) {
+			if (inicio == null || sobrepoe(particao, inicio, fim)) {
+				lidas.add(particao);
+			}
+		}
+		return uniao(lidas, inicio != null);
+	}
+
+	/**
+	 * SQL nativo de cada consulta desta classe sobre as particoes dadas, com os
+	 * parametros nomeados, para que {@link PlanosDeConsulta} compare os planos
+	 * com a linha de base como faz com as consultas nomeadas.
+	 */
+	static Map<String, String> consultas(List<String> particoes) {
+		Map<String, String> sqls = new TreeMap<String, String>();
+		sqls.put("ParticoesDeLance.leiloesPorUsuario", sqlDosLeiloesPorUsuario(uniao(particoes, false)));
+		sqls.put("ParticoesDeLance.leiloesPorUsuarioNoPeriodo", sqlDosLeiloesPorUsuario(uniao(particoes, true)));
+		sqls.put("ParticoesDeLance.valorInicialMedioPorUsuario", sqlDoValorInicialMedio(uniao(particoes, false)));
+		sqls.put("ParticoesDeLance.lancesResumidos", sqlDosLancesResumidos(particoes));
+		if (!particoes.isEmpty()) {
+			sqls.put("ParticoesDeLance.removeLancesDosLeiloes", sqlDaRemocao(particoes.get(0)));
+		}
+		return sqls;
+	}
+
+	// os filtros vao dentro de cada ramo, para que cada particao use o seu indice de USUARIO_ID
+	private static String uniao(List<String> particoes, boolean comPeriodo) {
+		String filtro = " where USUARIO_ID in (:usuarios)" + (comPeriodo ? " and DATA between :inicio and :fim" : "");
+		StringBuilder uniao = new StringBuilder("select LEILAO_ID, USUARIO_ID from LANCE").append(filtro);
+		for (String particao : particoes) {
+			uniao.append(" union all select LEILAO_ID, USUARIO_ID from ").append(particao).append(filtro);
+		}
+		return uniao.toString();
+	}
+
+	private static String sqlDosLeiloesPorUsuario(String uniao) {
+		return "select distinct p.USUARIO_ID, p.LEILAO_ID from (" + uniao + ") p";
+	}
+
+	private static String sqlDoValorInicialMedio(String uniao) {
+		return "select p.USUARIO_ID, avg(l.VALORINICIAL) from (" + uniao
+				+ ") p join LEILAO l on l.ID = p.LEILAO_ID group by p.USUARIO_ID";
+	}
+
+	private static String sqlDosLancesResumidos(List<String> particoes) {
+		StringBuilder uniao = new StringBuilder("select " + COLUNAS + " from LANCE");
+		for (String particao : particoes) {
+			uniao.append(" union all select ").append(COLUNAS).append(" from ").append(particao);
+		}
+		return "select p.ID, l.ID, p.USUARIO_ID, l.DONO_ID, p.VALOR, l.VALORINICIAL, p.DATA, l.ENCERRADO "
+				+ "from (" + uniao + ") p join LEILAO l on l.ID = p.LEILAO_ID";
+	}
+
+	private static String sqlDaRemocao(String particao) {
+		return "delete from " + particao + " where LEILAO_ID in (:leiloes)";
+	}
+
+	private SQLQuery consulta(String sql, Collection<Integer> usuarios, Calendar inicio, Calendar fim) {
+		SQLQuery consulta = session.createSQLQuery(sql);
+		consulta.setParameterList("usuarios", usuarios);
+		if (inicio != null) {
+			consulta.setParameter("inicio", inicio).setParameter("fim", fim);
+		}
+		return consulta;
+	}
+
+	private static boolean sobrepoe(String particao, Calendar inicio, Calendar fim) {
+		int mes = Integer.parseInt(particao.substring(PREFIXO.length()));
+		return mes >= aaaamm(inicio) && mes <= aaaamm(fim);
+	}
+
+	private static int aaaamm(Calendar data) {
+		return data.get(Calendar.YEAR) * 100 + data.get(Calendar.MONTH) + 1;
+	}
+
+	private static Calendar inicioDoMes(Calendar data) {
+		Calendar inicio = (Calendar) data.clone();
+		inicio.set(Calendar.DAY_OF_MONTH, 1);
+		inicio.set(Calendar.HOUR_OF_DAY, 0);
+		inicio.set(Calendar.MINUTE, 0);
+		inicio.set(Calendar.SECOND, 0);
+		inicio.set(Calendar.MILLISECOND, 0);
+		return inicio;
+	}
+
+	static List<String> particoes(Connection conexao) throws SQLException {
+		List<String> nomes = new ArrayList<String>();
+		Statement consulta = conexao.createStatement();
+		try {
+			ResultSet tabelas = consulta.executeQuery("select TABLE_NAME from INFORMATION_SCHEMA.TABLES "
+					+ "where TABLE_SCHEMA = 'PUBLIC' and TABLE_NAME like 'LANCE\\_%' escape '\\' order by TABLE_NAME");
+			while (tabelas.next()) {
+				nomes.add(tabelas.getString(1));
+			}
+		} finally {
+			consulta.close();
+		}
+		return nomes;
+	}
+
+	static void criaParticao(Connection conexao, String particao) throws SQLException {
+		executa(conexao, "create cached table " + particao + " (ID INTEGER NOT NULL PRIMARY KEY, DATA TIMESTAMP, "
+				+ "VALOR DOUBLE NOT NULL, LEILAO_ID INTEGER, USUARIO_ID INTEGER)");
+		executa(conexao, "create index IDX_" + particao + "_USUARIO on " + particao + " (USUARIO_ID)");
+		executa(conexao, "create index IDX_" + particao + "_LEILAO on " + particao + " (LEILAO_ID)");
+	}
+
+	private static int move(Connection conexao, String particao, int mes) throws SQLException {
+		Calendar inicio = Calendar.getInstance();
+		inicio.clear();
+		inicio.set(mes / 100, mes % 100 - 1, 1);
+		Calendar fim = (Calendar) inicio.clone();
+		fim.add(Calendar.MONTH, 1);
+
+		PreparedStatement copia = conexao.prepareStatement("insert into " + particao + " select " + COLUNAS
+				+ " from LANCE where " + DE_LEILOES_ENCERRADOS);
+		PreparedStatement remocao = conexao.prepareStatement("delete from LANCE where " + DE_LEILOES_ENCERRADOS);
+		try {
+			for (PreparedStatement statement : new PreparedStatement[] { copia, remocao }) {
+				statement.setTimestamp(1, new Timestamp(inicio.getTimeInMillis()));
+				statement.setTimestamp(2, new Timestamp(fim.getTimeInMillis()));
+			}
+			copia.executeUpdate();
+			return remocao.executeUpdate();
+		} finally {
+			copia.close();
+			remocao.close();
+		}
+	}
+
+	private static void executa(Connection conexao, String sql) throws SQLException {
+		Statement statement = conexao.createStatement();
+		try {
+			statement.execute(sql);
+		} finally {
+			statement.close();
+		}
+	}
+}
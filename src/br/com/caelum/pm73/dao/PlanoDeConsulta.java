@@ -0,0 +1,113 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Resumo do EXPLAIN PLAN do HSQLDB para uma consulta: o tipo de acesso usado
+ * em cada tabela e o custo, medido como o total de linhas das tabelas lidas
+ * por varredura completa.
+ */
+public class PlanoDeConsulta {
+
+	static final String VARREDURA = "FULL SCAN";
+	// tabela temporaria que o HSQLDB monta para os valores de um IN (?)
+	private static final String LISTA_DE_PARAMETROS = "SYSTEM_SUBQUERY";
+
+	private final String nome;
+	private final String sql;
+	private final String plano;
+	private final Set<String> acessos;
+	private final long custo;
+
+	PlanoDeConsulta(String nome, String sql, String plano, Set<String> acessos, long custo) {
+		this.nome = nome;
+		this.sql = sql;
+		this.plano = plano;
+		this.acessos = acessos;
+		this.custo = custo;
+	}
+
+	// le a saida do EXPLAIN PLAN; subconsultas aparecem repetidas e contam uma vez so
+	static PlanoDeConsulta doExplain(String nome, String sql, String plano) {
+		Set<String> acessos = new TreeSet<String>();
+		Set<String> varridas = new TreeSet<String>();
+		long custo = 0;
+
+		String tabela = null;
+		long linhas = 0;
+		for (String linha : plano.split("\n")) {
+			linha = linha.trim();
+			if (linha.startsWith("table=")) {
+				tabela = linha.substring("table=".length());
+				linhas = 0;
+			} else if (linha.startsWith("cardinality=")) {
+				linhas = Long.parseLong(linha.substring("cardinality=".length()));
+			} else if (linha.startsWith("access=") && tabela != null && !tabela.equals(LISTA_DE_PARAMETROS)) {
+				String acesso = linha.substring("access=".length());
+				acessos.add(tabela + "=" + acesso);
+				if (acesso.equals(VARREDURA) && varridas.add(tabela)) {
+					custo += linhas;
+				}
+				tabela = null;
+			}
+		}
+		return new PlanoDeConsulta(nome, sql, plano, acessos, custo);
+	}
+
+	// formato da linha de base: nome|custo|TABELA=ACESSO,TABELA=ACESSO
+	static PlanoDeConsulta daLinhaDeBase(String linha) {
+		String[] partes = linha.split("\\|", -1);
+		if (partes.length != 3) {
+			throw new IllegalArgumentException("linha de base invalida: " + linha);
+		}
+		Set<String> acessos = new TreeSet<String>();
+		for (String acesso : partes[2].split(",")) {
+			if (acesso.length() > 0) {
+				acessos.add(acesso);
+			}
+		}
+		return new PlanoDeConsulta(partes[0], null, null, acessos, Long.parseLong(partes[1]));
+	}
+
+	String paraLinhaDeBase() {
+		StringBuilder linha = new StringBuilder(nome).append('|').append(custo).append('|');
+		String separador = "";
+		for (String acesso : acessos) {
+			linha.append(separador).append(acesso);
+			separador = ",";
+		}
+		return linha.toString();
+	}
+
+	// tabelas acessadas por indice, em algum ponto do plano
+	public Set<String> tabelasComIndice() {
+		Set<String> tabelas = new TreeSet<String>();
+		for (String acesso : acessos) {
+			if (!acesso.endsWith("=" + VARREDURA)) {
+				tabelas.add(acesso.substring(0, acesso.indexOf('=')));
+			}
+		}
+		return tabelas;
+	}
+
+	public String getNome() {
+		return nome;
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	public String getPlano() {
+		return plano;
+	}
+
+	public Set<String> getAcessos() {
+		return acessos;
+	}
+
+	public long getCusto() {
+		return custo;
+	}
+}
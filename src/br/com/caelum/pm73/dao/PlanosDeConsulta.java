@@ -0,0 +1,248 @@
+package br.com.caelum.pm73.dao;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.spi.NamedQueryDefinition;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.jdbc.ReturningWork;
+
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Captura o SQL que o Hibernate gera para cada consulta nomeada (todas as
+ * consultas HQL do {@link LeilaoDao} e do {@link UsuarioDao} sao nomeadas),
+ * mais o SQL nativo de {@link ParticoesDeLance}, e o EXPLAIN PLAN do HSQLDB
+ * para ele, e compara com a linha de base guardada em
+ * planos-de-consulta.txt. Uma consulta regride quando perde o acesso por
+ * indice em alguma tabela ou quando o custo passa de FATOR_DE_CUSTO vezes o
+ * da linha de base.
+ *
+ * Os custos dependem do volume de dados, entao a captura deve ser feita num
+ * banco semeado por {@link #semeia(CriadorDeSessao)}. Para regravar a linha de
+ * base depois de uma mudanca intencional: PlanosDeConsulta grava
+ */
+public class PlanosDeConsulta {
+
+	public static final String LINHA_DE_BASE = "planos-de-consulta.txt";
+	public static final double FATOR_DE_CUSTO = 1.5;
+
+	static final int USUARIOS = 200;
+	static final int LEILOES_POR_USUARIO = 5;
+	static final int LANCES_POR_LEILAO = 5;
+
+	private final CriadorDeSessao criador;
+
+	public PlanosDeConsulta(CriadorDeSessao criador) {
+		this.criador = criador;
+	}
+
+	// volume fixo, para que os custos sejam comparaveis entre execucoes; os lances dos leiloes
+	// encerrados sao de janeiro de 2020 e terminam arquivados na particao LANCE_202001
+	public static void semeia(CriadorDeSessao criador) {
+		StatelessSession session = criador.getSessaoSemEstado();
+		try {
+			Transaction transacao = session.beginTransaction();
+			List<Usuario> usuarios = new ArrayList<Usuario>();
+			for (int i = 0; i < USUARIOS; i++) {
+				Usuario usuario = new Usuario("Usuario " + i, "usuario" + i + "@caelum.com.br");
+				session.insert(usuario);
+				usuarios.add(usuario);
+			}
+
+			Calendar data = Calendar.getInstance();
+			Calendar arquivada = new GregorianCalendar(2020, Calendar.JANUARY, 15);
+			int leiloes = 0;
+			for (Usuario dono : usuarios) {
+				for (int i = 0; i < LEILOES_POR_USUARIO; i++) {
+					Leilao leilao = new Leilao("Leilao " + leiloes, 100.0 + leiloes, dono, leiloes % 3 == 0);
+					leilao.setDataAbertura(data);
+					if (leiloes % 4 == 0) {
+						leilao.encerra();
+					}
+					session.insert(leilao);
+
+					for (int j = 0; j < LANCES_POR_LEILAO; j++) {
+						Usuario usuario = usuarios.get((leiloes + j + 1) % usuarios.size());
+						session.insert(new Lance(leilao.isEncerrado() ? arquivada : data, usuario, 200.0 + j, leilao));
+					}
+					leiloes++;
+				}
+			}
+			transacao.commit();
+		} finally {
+			session.close();
+		}
+
+		Session arquivamento = criador.getSession();
+		try {
+			arquivamento.beginTransaction();
+			new ParticoesDeLance(arquivamento).arquiva(Calendar.getInstance());
+			arquivamento.getTransaction().commit();
+		} finally {
+			arquivamento.close();
+		}
+	}
+
+	public Map<String, PlanoDeConsulta> captura() {
+		SessionFactoryImplementor sf = (SessionFactoryImplementor) criador.getSessionFactory();
+		final Map<String, String> sqls = new TreeMap<String, String>();
+		for (Map.Entry<String, NamedQueryDefinition> consulta : criador.getConfig().getNamedQueries().entrySet()) {
+			HQLQueryPlan plano = sf.getQueryPlanCache().getHQLQueryPlan(consulta.getValue().getQueryString(), false,
+					Collections.EMPTY_MAP);
+			String[] gerados = plano.getSqlStrings();
+			for (int i = 0; i < gerados.length; i++) {
+				sqls.put(gerados.length == 1 ? consulta.getKey() : consulta.getKey() + "#" + i, gerados[i]);
+			}
+		}
+
+		Session session = criador.getSession();
+		try {
+			return session.doReturningWork(new ReturningWork<Map<String, PlanoDeConsulta>>() {
+				public Map<String, PlanoDeConsulta> execute(Connection conexao) throws SQLException {
+					// o SQL nativo usa parametros nomeados, que o Hibernate troca por '?'
+					for (Map.Entry<String, String> nativa : ParticoesDeLance.consultas(
+							ParticoesDeLance.particoes(conexao)).entrySet()) {
+						sqls.put(nativa.getKey(), nativa.getValue().replaceAll(":\\w+", "?"));
+					}
+
+					Map<String, PlanoDeConsulta> planos = new TreeMap<String, PlanoDeConsulta>();
+					for (Map.Entry<String, String> sql : sqls.entrySet()) {
+						planos.put(sql.getKey(), PlanoDeConsulta.doExplain(sql.getKey(), sql.getValue(),
+								explain(conexao, sql.getValue())));
+					}
+					return planos;
+				}
+			});
+		} finally {
+			session.close();
+		}
+	}
+
+	private static String explain(Connection conexao, String sql) throws SQLException {
+		PreparedStatement explain = conexao.prepareStatement("explain plan for " + sql);
+		try {
+			StringBuilder plano = new StringBuilder();
+			ResultSet resultado = explain.executeQuery();
+			while (resultado.next()) {
+				plano.append(resultado.getString(1)).append('\n');
+			}
+			return plano.toString();
+		} finally {
+			explain.close();
+		}
+	}
+
+	// uma mensagem por regressao; consultas que sairam do codigo sao ignoradas
+	public static List<String> regressoes(Map<String, PlanoDeConsulta> base, Map<String, PlanoDeConsulta> atuais,
+			double fatorDeCusto) {
+		List<String> regressoes = new ArrayList<String>();
+		for (PlanoDeConsulta atual : atuais.values()) {
+			PlanoDeConsulta anterior = base.get(atual.getNome());
+			if (anterior == null) {
+				regressoes.add(atual.getNome() + ": sem linha de base " + atual.getAcessos());
+				continue;
+			}
+			for (String tabela : anterior.tabelasComIndice()) {
+				if (!atual.tabelasComIndice().contains(tabela)) {
+					regressoes.add(atual.getNome() + ": perdeu o acesso por indice em " + tabela + " "
+							+ atual.getAcessos());
+				}
+			}
+			if (atual.getCusto() > anterior.getCusto() * fatorDeCusto) {
+				regressoes.add(atual.getNome() + ": custo " + atual.getCusto() + " acima do limite de "
+						+ anterior.getCusto() * fatorDeCusto);
+			}
+		}
+		return regressoes;
+	}
+
+	public static Map<String, PlanoDeConsulta> le(File arquivo) throws IOException {
+		Map<String, PlanoDeConsulta> planos = new TreeMap<String, PlanoDeConsulta>();
+		BufferedReader leitor = new BufferedReader(new InputStreamReader(new FileInputStream(arquivo), "UTF-8"));
+		try {
+			String linha;
+			while ((linha = leitor.readLine()) != null) {
+				linha = linha.trim();
+				if (linha.length() > 0 && !linha.startsWith("#")) {
+					PlanoDeConsulta plano = PlanoDeConsulta.daLinhaDeBase(linha);
+					planos.put(plano.getNome(), plano);
+				}
+			}
+		} finally {
+			leitor.close();
+		}
+		return planos;
+	}
+
+	public static void grava(File arquivo, Map<String, PlanoDeConsulta> planos) throws IOException {
+		PrintWriter escritor = new PrintWriter(new OutputStreamWriter(new FileOutputStream(arquivo), "UTF-8"));
+		try {
+			escritor.println("# consulta|custo (linhas lidas por varredura completa)|TABELA=acesso");
+			escritor.println("# gerado por PlanosDeConsulta com " + USUARIOS + " usuarios, " + LEILOES_POR_USUARIO
+					+ " leiloes por usuario e " + LANCES_POR_LEILAO + " lances por leilao,");
+			escritor.println("# os dos leiloes encerrados arquivados em LANCE_202001");
+			for (PlanoDeConsulta plano : planos.values()) {
+				escritor.println(plano.paraLinhaDeBase());
+			}
+		} finally {
+			escritor.close();
+		}
+	}
+
+	public static String relatorio(Map<String, PlanoDeConsulta> planos) {
+		StringBuilder relatorio = new StringBuilder();
+		for (PlanoDeConsulta plano : planos.values()) {
+			relatorio.append(plano.getNome()).append(": custo=").append(plano.getCusto()).append(' ')
+					.append(plano.getAcessos()).append("\n  ").append(plano.getSql()).append('\n');
+		}
+		return relatorio.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		CriadorDeSessao criador = CriadorDeSessao.emMemoria("planos");
+		try {
+			semeia(criador);
+			Map<String, PlanoDeConsulta> atuais = new PlanosDeConsulta(criador).captura();
+			System.out.println(relatorio(atuais));
+
+			File arquivo = new File(LINHA_DE_BASE);
+			if (args.length > 0 && args[0].equals("grava")) {
+				grava(arquivo, atuais);
+				return;
+			}
+			List<String> regressoes = regressoes(le(arquivo), atuais, FATOR_DE_CUSTO);
+			for (String regressao : regressoes) {
+				System.err.println(regressao);
+			}
+			if (!regressoes.isEmpty()) {
+				System.exit(1);
+			}
+		} finally {
+			criador.fecha();
+		}
+	}
+}
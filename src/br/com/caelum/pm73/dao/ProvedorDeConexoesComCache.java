@@ -0,0 +1,90 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.hibernate.service.jdbc.connections.internal.DriverManagerConnectionProviderImpl;
+
+/**
+ * Pool de conexoes do Hibernate em que cada conexao fisica tem o seu
+ * {@link CacheDeStatements}. Configurado em
+ * {@link CriadorDeSessao} via hibernate.connection.provider_class. Cada pool
+ * (e portanto cada SessionFactory) tem as suas {@link EstatisticasDeConsultas}.
+ */
+public class ProvedorDeConexoesComCache extends DriverManagerConnectionProviderImpl {
+
+	public static final String TAMANHO_DO_CACHE = "caelum.statement_cache.size";
+
+	private final Map<Connection, CacheDeStatements> caches = new IdentityHashMap<Connection, CacheDeStatements>();
+	private final Map<Connection, CacheDeStatements> porProxy = new IdentityHashMap<Connection, CacheDeStatements>();
+	private final EstatisticasDeConsultas estatisticas = new EstatisticasDeConsultas();
+	private int tamanhoDoCache = 50;
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void configure(Map configuracao) {
+		super.configure(configuracao);
+		Object tamanho = configuracao.get(TAMANHO_DO_CACHE);
+		if (tamanho != null) {
+			tamanhoDoCache = Integer.parseInt(tamanho.toString());
+		}
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		Connection conexao = super.getConnection();
+
+		synchronized (caches) {
+			CacheDeStatements cache = caches.get(conexao);
+			if (cache == null) {
+				cache = new CacheDeStatements(conexao, tamanhoDoCache, estatisticas);
+				caches.put(conexao, cache);
+				porProxy.put(cache.getProxy(), cache);
+			}
+			return cache.getProxy();
+		}
+	}
+
+	@Override
+	public void closeConnection(Connection proxy) throws SQLException {
+		CacheDeStatements cache;
+		synchronized (caches) {
+			cache = porProxy.get(proxy);
+		}
+
+		if (cache == null) {
+			super.closeConnection(proxy);
+			return;
+		}
+
+		Connection conexao = cache.getConexao();
+		super.closeConnection(conexao);
+
+		// o pool fecha as conexoes que excedem o seu tamanho: o cache vai junto
+		if (conexao.isClosed()) {
+			cache.fechaTodos();
+			synchronized (caches) {
+				caches.remove(conexao);
+				porProxy.remove(proxy);
+			}
+		}
+	}
+
+	EstatisticasDeConsultas getEstatisticas() {
+		return estatisticas;
+	}
+
+	@Override
+	public void stop() {
+		synchronized (caches) {
+			for (CacheDeStatements cache : caches.values()) {
+				cache.fechaTodos();
+			}
+			caches.clear();
+			porProxy.clear();
+		}
+		super.stop();
+	}
+}
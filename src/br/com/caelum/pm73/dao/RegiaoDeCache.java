@@ -0,0 +1,142 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resultados de uma consulta por intervalo, guardados como listas de ids. Cada
+ * entrada lembra o intervalo que consultou, entao uma escrita so invalida as
+ * entradas cujo intervalo contem o novo valor da linha ou cujo resultado ja
+ * continha a linha.
+ *
+ * Uma consulta executada enquanto uma escrita invalidava a regiao nao e
+ * guardada: quem consulta anota a versao da regiao antes e o resultado so entra
+ * se ela nao mudou.
+ */
+public class RegiaoDeCache {
+
+	private final String nome;
+	private final Set<String> tabelas;
+	private final LinkedHashMap<List<Object>, Entrada> entradas;
+
+	private long versao;
+	private long acertos;
+	private long faltas;
+	private long invalidacoes;
+	private long remocoesPorTamanho;
+
+	private static class Entrada {
+		final double inicio;
+		final double fim;
+		final List<Integer> ids;
+
+		Entrada(double inicio, double fim, List<Integer> ids) {
+			this.inicio = inicio;
+			this.fim = fim;
+			this.ids = ids;
+		}
+	}
+
+	public RegiaoDeCache(String nome, final int capacidade, String... tabelas) {
+		this.nome = nome;
+		this.tabelas = new HashSet<String>(Arrays.asList(tabelas));
+		this.entradas = new LinkedHashMap<List<Object>, Entrada>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Object>, Entrada> maisAntiga) {
+				if (size() > capacidade) {
+					remocoesPorTamanho++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public String getNome() {
+		return nome;
+	}
+
+	public boolean dependeDe(String tabela) {
+		return tabelas.contains(tabela);
+	}
+
+	public synchronized List<Integer> busca(List<Object> chave) {
+		Entrada entrada = entradas.get(chave);
+		if (entrada == null) {
+			faltas++;
+			return null;
+		}
+		acertos++;
+		return entrada.ids;
+	}
+
+	public synchronized long getVersao() {
+		return versao;
+	}
+
+	public synchronized void guarda(List<Object> chave, long versaoDaConsulta, double inicio, double fim,
+			List<Integer> ids) {
+		if (versaoDaConsulta == versao) {
+			entradas.put(chave, new Entrada(inicio, fim, Collections.unmodifiableList(ids)));
+		}
+	}
+
+	// valor NaN quando a escrita nao tem um valor novo a comparar (remocao, por exemplo)
+	public synchronized void invalida(Collection<Integer> ids, double valor) {
+		versao++;
+		for (Iterator<Entrada> it = entradas.values().iterator(); it.hasNext();) {
+			Entrada entrada = it.next();
+			boolean noIntervalo = valor >= entrada.inicio && valor <= entrada.fim;
+			if (noIntervalo || !Collections.disjoint(entrada.ids, ids)) {
+				it.remove();
+				invalidacoes++;
+			}
+		}
+	}
+
+	public synchronized void invalidaTudo() {
+		versao++;
+		invalidacoes += entradas.size();
+		entradas.clear();
+	}
+
+	public synchronized int getTamanho() {
+		return entradas.size();
+	}
+
+	public synchronized long getAcertos() {
+		return acertos;
+	}
+
+	public synchronized long getFaltas() {
+		return faltas;
+	}
+
+	public synchronized long getInvalidacoes() {
+		return invalidacoes;
+	}
+
+	public synchronized long getRemocoesPorTamanho() {
+		return remocoesPorTamanho;
+	}
+
+	public synchronized double getTaxaDeAcerto() {
+		long consultas = acertos + faltas;
+		return consultas == 0 ? 0.0 : (double) acertos / consultas;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s: entradas=%d acertos=%d faltas=%d taxa=%.1f%% invalidacoes=%d removidas=%d", nome,
+				entradas.size(), acertos, faltas, getTaxaDeAcerto() * 100, invalidacoes, remocoesPorTamanho);
+	}
+}
@@ -1,15 +1,47 @@
 package br.com.caelum.pm73.dao;
 
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
 import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
 
 import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.eventos.FilaDeEventos;
+import br.com.caelum.pm73.eventos.PublicadorDeEventos;
+import br.com.caelum.pm73.eventos.TipoDeEvento;
 
 public class UsuarioDao {
 
+	private static final int TAMANHO_DO_BLOCO = 500;
+	private static final int TENTATIVAS = 3;
+
 	private final Session session;
+	private final PublicadorDeEventos eventos;
+	private final ModoDeLote lote;
+	private final IndiceDeUsuarios indice;
 
 	public UsuarioDao(Session session) {
+		this(session, ModoDeLote.SEM_LIMITE);
+	}
+
+	public UsuarioDao(Session session, ModoDeLote lote) {
 		this.session = session;
+		this.lote = lote;
+		this.indice = IndiceDeUsuarios.de(session.getSessionFactory());
+		this.eventos = new PublicadorDeEventos(session, FilaDeEventos.de(session.getSessionFactory()));
 	}
 	
 	public Usuario porId(int id) {
@@ -17,21 +49,201 @@ public class UsuarioDao {
 	}
 	
 	public Usuario porNomeEEmail(String nome, String email) {
-		return (Usuario) session.createQuery("from Usuario u where u.nome = :nome and u.email = :email")
+		return (Usuario) session.getNamedQuery("Usuario.porNomeEEmail")
 				.setParameter("nome", nome)
 				.setParameter("email", email)
 				.uniqueResult();
 	}
+
+	/**
+	 * Resolve um lote de (nome, email), recebidos como usuarios ainda nao
+	 * salvos, devolvendo os usuarios persistentes na mesma ordem. Os que nao
+	 * existem sao inseridos num unico batch JDBC por bloco. Se outra transacao
+	 * inserir o mesmo usuario ao mesmo tempo, a restricao unica em (nome, email)
+	 * recusa a copia e o bloco e resolvido de novo. Nome e email sao
+	 * obrigatorios: a busca por email nunca encontra NULL e a restricao unica
+	 * aceita emails nulos repetidos.
+	 */
+	public List<Usuario> encontraOuCria(Collection<Usuario> dados) {
+		for (Usuario dado : dados) {
+			if (dado.getNome() == null || dado.getEmail() == null) {
+				throw new IllegalArgumentException("usuario sem nome ou email: " + dado.getNome() + " / "
+						+ dado.getEmail());
+			}
+		}
+
+		Map<String, Usuario> resolvidos = new HashMap<String, Usuario>();
+		Map<String, Usuario> pendentes = new LinkedHashMap<String, Usuario>();
+
+		for (Usuario dado : dados) {
+			String chave = IndiceDeUsuarios.chave(dado.getNome(), dado.getEmail());
+			Integer id = indice.busca(chave);
+			if (id != null) {
+				resolvidos.put(chave, porId(id));
+			} else {
+				pendentes.put(chave, dado);
+			}
+		}
+
+		Map<String, Integer> novosNoIndice = new HashMap<String, Integer>();
+		List<String> chaves = new ArrayList<String>(pendentes.keySet());
+		for (int inicio = 0; inicio < chaves.size(); inicio += TAMANHO_DO_BLOCO) {
+			List<String> bloco = chaves.subList(inicio, Math.min(inicio + TAMANHO_DO_BLOCO, chaves.size()));
+			Map<String, Usuario> encontrados = resolveBloco(bloco, pendentes);
+			for (Map.Entry<String, Usuario> encontrado : encontrados.entrySet()) {
+				resolvidos.put(encontrado.getKey(), encontrado.getValue());
+				novosNoIndice.put(encontrado.getKey(), encontrado.getValue().getId());
+			}
+		}
+		publicaAposCommit(novosNoIndice);
+		lote.depoisDeEscrever(session);
+
+		List<Usuario> usuarios = new ArrayList<Usuario>(dados.size());
+		for (Usuario dado : dados) {
+			usuarios.add(resolvidos.get(IndiceDeUsuarios.chave(dado.getNome(), dado.getEmail())));
+		}
+		return usuarios;
+	}
+
+	// um batch recusado mantem na transacao as linhas anteriores a recusada; elas contam como criadas aqui
+	private Map<String, Usuario> resolveBloco(List<String> bloco, Map<String, Usuario> dados) {
+		List<Usuario> inseridos = new ArrayList<Usuario>();
+		for (int tentativa = 1;; tentativa++) {
+			Map<String, Usuario> existentes = porChaves(bloco, dados);
+
+			final List<Usuario> faltantes = new ArrayList<Usuario>();
+			for (String chave : bloco) {
+				if (!existentes.containsKey(chave)) {
+					faltantes.add(dados.get(chave));
+				}
+			}
+			if (faltantes.isEmpty()) {
+				publicaCriados(existentes, inseridos);
+				return existentes;
+			}
+
+			int feitos = session.doReturningWork(new ReturningWork<Integer>() {
+				public Integer execute(Connection conexao) throws SQLException {
+					return insereEmLote(conexao, faltantes);
+				}
+			});
+			inseridos.addAll(faltantes.subList(0, feitos));
+			if (feitos == faltantes.size()) {
+				Map<String, Usuario> resolvidos = porChaves(bloco, dados);
+				publicaCriados(resolvidos, inseridos);
+				return resolvidos;
+			}
+			if (tentativa == TENTATIVAS) {
+				throw new IllegalStateException("nao foi possivel criar os usuarios apos " + TENTATIVAS + " tentativas");
+			}
+		}
+	}
+
+	private void publicaCriados(Map<String, Usuario> resolvidos, List<Usuario> inseridos) {
+		for (Usuario inserido : inseridos) {
+			Usuario criado = resolvidos.get(IndiceDeUsuarios.chave(inserido.getNome(), inserido.getEmail()));
+			eventos.publica(TipoDeEvento.USUARIO_CRIADO, criado.getId());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Usuario> porChaves(List<String> chaves, Map<String, Usuario> dados) {
+		List<String> emails = new ArrayList<String>(chaves.size());
+		for (String chave : chaves) {
+			emails.add(dados.get(chave).getEmail());
+		}
+
+		List<Usuario> candidatos = session.getNamedQuery("Usuario.porEmails").setParameterList("emails", emails)
+				.list();
+
+		Map<String, Usuario> encontrados = new HashMap<String, Usuario>();
+		for (Usuario candidato : candidatos) {
+			String chave = IndiceDeUsuarios.chave(candidato.getNome(), candidato.getEmail());
+			if (dados.containsKey(chave)) {
+				encontrados.put(chave, candidato);
+			}
+		}
+		return encontrados;
+	}
+
+	// quantos usuarios, do inicio da lista, foram inseridos; menos que todos se algum
+	// ja tiver sido criado por outra transacao
+	private static int insereEmLote(Connection conexao, List<Usuario> usuarios) throws SQLException {
+		PreparedStatement insercao = conexao.prepareStatement("insert into USUARIO (NOME, EMAIL) values (?, ?)");
+		try {
+			for (Usuario usuario : usuarios) {
+				insercao.setString(1, usuario.getNome());
+				insercao.setString(2, usuario.getEmail());
+				insercao.addBatch();
+			}
+			insercao.executeBatch();
+			return usuarios.size();
+		} catch (SQLException e) {
+			if (violouUnicidade(e)) {
+				return executadosAntesDaFalha(e);
+			}
+			throw e;
+		} finally {
+			insercao.close();
+		}
+	}
+
+	private static int executadosAntesDaFalha(SQLException erro) {
+		if (!(erro instanceof BatchUpdateException)) {
+			return 0;
+		}
+		int executados = 0;
+		for (int contagem : ((BatchUpdateException) erro).getUpdateCounts()) {
+			if (contagem == Statement.EXECUTE_FAILED) {
+				break;
+			}
+			executados++;
+		}
+		return executados;
+	}
+
+	private static boolean violouUnicidade(SQLException erro) {
+		for (SQLException e = erro; e != null; e = e.getNextException()) {
+			if ("23505".equals(e.getSQLState())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void publicaAposCommit(final Map<String, Integer> resolvidos) {
+		if (resolvidos.isEmpty() || !session.getTransaction().isActive()) {
+			return;
+		}
+		session.getTransaction().registerSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					indice.guarda(resolvidos);
+				}
+			}
+		});
+	}
 	
 	public void salvar(Usuario usuario) {
 		session.save(usuario);
+		eventos.publica(TipoDeEvento.USUARIO_CRIADO, usuario.getId());
+		lote.depoisDeEscrever(session);
 	}
 	
 	public void atualizar(Usuario usuario) {
+		indice.remove(usuario.getId());
 		session.merge(usuario);
+		eventos.publica(TipoDeEvento.USUARIO_ATUALIZADO, usuario.getId());
+		lote.depoisDeEscrever(session);
 	}
 	
 	public void deletar(Usuario usuario) {
+		indice.remove(usuario.getId());
 		session.delete(usuario);
+		eventos.publica(TipoDeEvento.USUARIO_DELETADO, usuario.getId());
+		lote.depoisDeEscrever(session);
 	}
 }
@@ -6,8 +6,26 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 
 @Entity
+@NamedQueries({
+	@NamedQuery(name = "Lance.leiloesDoUsuario", query = "select distinct lance.leilao "
+			+ "from Lance lance where lance.usuario = :usuario"),
+	@NamedQuery(name = "Lance.valorInicialMedioDoUsuario", query = "select avg(lance.leilao.valorInicial) "
+			+ "from Lance lance where lance.usuario = :usuario"),
+	@NamedQuery(name = "Lance.leiloesDosUsuarios", query = "select distinct lance.usuario.id, lance.leilao "
+			+ "from Lance lance where lance.usuario.id in (:usuarios)"),
+	@NamedQuery(name = "Lance.valorInicialMedioDosUsuarios", query = "select lance.usuario.id, "
+			+ "avg(lance.leilao.valorInicial) from Lance lance where lance.usuario.id in (:usuarios) "
+			+ "group by lance.usuario.id"),
+	@NamedQuery(name = "Lance.resumidos", query = "select lance.id, leilao.id, lance.usuario.id, leilao.dono.id, "
+			+ "lance.valor, leilao.valorInicial, lance.data, leilao.encerrado "
+			+ "from Lance lance join lance.leilao leilao"),
+	@NamedQuery(name = "Lance.colunasDoLeilao", query = "select lance.valor, lance.data, lance.usuario.id, lance.id "
+			+ "from Lance lance where lance.leilao.id = :leilao order by lance.id")
+})
 public class Lance {
 
 	@Id @GeneratedValue
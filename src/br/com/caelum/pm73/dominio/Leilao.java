@@ -9,9 +9,34 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 
+import org.hibernate.annotations.Index;
+
 @Entity
+@NamedQueries({
+	@NamedQuery(name = "Leilao.novos", query = "from Leilao l where l.usado = false"),
+	@NamedQuery(name = "Leilao.antigos", query = "from Leilao l where l.dataAbertura < :data"),
+	@NamedQuery(name = "Leilao.porPeriodo", query = "from Leilao l where l.dataAbertura "
+			+ "between :inicio and :fim and l.encerrado = false"),
+	@NamedQuery(name = "Leilao.disputadosEntre", query = "from Leilao l where l.valorInicial "
+			+ "between :inicio and :fim and l.encerrado = false and size(l.lances) > 3"),
+	@NamedQuery(name = "Leilao.porIds", query = "from Leilao l where l.id in (:ids)"),
+	@NamedQuery(name = "Leilao.abertosPorIds", query = "select l.id from Leilao l "
+			+ "where l.id in (:ids) and l.encerrado = false and l.dataEncerramento <= :agora"),
+	@NamedQuery(name = "Leilao.encerradoPorId", query = "select l.encerrado from Leilao l where l.id = :id"),
+	@NamedQuery(name = "Leilao.total", query = "select count(l) from Leilao l where l.encerrado = false"),
+	@NamedQuery(name = "Leilao.idsEncerrados", query = "select l.id from Leilao l where l.encerrado = true"),
+	@NamedQuery(name = "Leilao.deletaEncerrados", query = "delete from Leilao l where l.encerrado = true"),
+	@NamedQuery(name = "Leilao.encerraPorIds", query = "update Leilao l set l.encerrado = true "
+			+ "where l.id in (:ids) and l.encerrado = false and l.dataEncerramento <= :agora"),
+	@NamedQuery(name = "Leilao.pendentesDeEncerramento", query = "select l.id, l.dataEncerramento from Leilao l "
+			+ "where l.encerrado = false and l.dataEncerramento is not null"),
+	@NamedQuery(name = "Leilao.pendentesDeEncerramentoPorIds", query = "select l.id, l.dataEncerramento "
+			+ "from Leilao l where l.id in (:ids) and l.encerrado = false and l.dataEncerramento is not null")
+})
 public class Leilao {
 
 	@Id @GeneratedValue
@@ -20,7 +45,10 @@ public class Leilao {
 	private Double valorInicial;
 	@ManyToOne
 	private Usuario dono;
+	// Leilao.porPeriodo e Leilao.antigos filtram pela abertura
+	@Index(name = "IX_LEILAO_DATAABERTURA")
 	private Calendar dataAbertura;
+	private Calendar dataEncerramento;
 	private boolean usado;
 	private boolean encerrado;
 	@OneToMany(cascade=CascadeType.ALL, orphanRemoval=true, mappedBy="leilao")
@@ -47,6 +75,14 @@ public class Leilao {
 		return dataAbertura;
 	}
 
+	public void setDataEncerramento(Calendar dataEncerramento) {
+		this.dataEncerramento = dataEncerramento;
+	}
+
+	public Calendar getDataEncerramento() {
+		return dataEncerramento;
+	}
+
 	public void setNome(String nome) {
 		this.nome = nome;
 	}
@@ -3,13 +3,26 @@ package br.com.caelum.pm73.dominio;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.annotations.Index;
 
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = { "nome", "email" }))
+@NamedQueries({
+	@NamedQuery(name = "Usuario.porNomeEEmail", query = "from Usuario u where u.nome = :nome and u.email = :email"),
+	@NamedQuery(name = "Usuario.porEmails", query = "from Usuario u where u.email in (:emails)")
+})
 public class Usuario {
 	
 	@Id @GeneratedValue
 	private int id;
 	private String nome;
+	// o indice unico comeca pelo nome e nao serve para Usuario.porEmails
+	@Index(name = "IX_USUARIO_EMAIL")
 	private String email;
 
 	protected Usuario() {}
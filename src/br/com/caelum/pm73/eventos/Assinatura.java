@@ -0,0 +1,63 @@
+package br.com.caelum.pm73.eventos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cursor de um assinante sobre a {@link FilaDeEventos}. Cada assinatura tem a
+ * sua sequencia e deve ser consumida por uma unica thread.
+ */
+public class Assinatura {
+
+	private final FilaDeEventos fila;
+	private volatile long proxima;
+	private volatile long perdidos;
+
+	Assinatura(FilaDeEventos fila, long proxima) {
+		this.fila = fila;
+		this.proxima = proxima;
+	}
+
+	// ate 'maximo' eventos ja publicados, sem esperar
+	public List<Evento> proximos(int maximo) {
+		List<Evento> lote = new ArrayList<Evento>();
+		while (lote.size() < maximo) {
+			Evento evento = fila.evento(proxima);
+			if (evento == null || evento.getSequencia() < proxima) {
+				break;
+			}
+			if (evento.getSequencia() > proxima) {
+				// a fila deu a volta: pula para o evento mais antigo ainda disponivel
+				long maisAntiga = Math.max(fila.getMaisAntiga(), proxima + 1);
+				perdidos += maisAntiga - proxima;
+				proxima = maisAntiga;
+				continue;
+			}
+			lote.add(evento);
+			proxima++;
+		}
+		return lote;
+	}
+
+	// como proximos(), mas espera ate 'timeout' milissegundos pelo primeiro evento
+	public List<Evento> aguarda(int maximo, long timeout) {
+		long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		List<Evento> lote = proximos(maximo);
+		while (lote.isEmpty() && System.nanoTime() < limite) {
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+			lote = proximos(maximo);
+		}
+		return lote;
+	}
+
+	// sequencia do proximo evento a ser entregue; serve de offset para assinaDesde()
+	public long getSequencia() {
+		return proxima;
+	}
+
+	public long getPerdidos() {
+		return perdidos;
+	}
+}
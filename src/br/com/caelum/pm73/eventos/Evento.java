@@ -0,0 +1,38 @@
+package br.com.caelum.pm73.eventos;
+
+public class Evento {
+
+	private final long sequencia;
+	private final TipoDeEvento tipo;
+	private final int id;
+	private final long momento;
+
+	Evento(long sequencia, TipoDeEvento tipo, int id, long momento) {
+		this.sequencia = sequencia;
+		this.tipo = tipo;
+		this.id = id;
+		this.momento = momento;
+	}
+
+	public long getSequencia() {
+		return sequencia;
+	}
+
+	public TipoDeEvento getTipo() {
+		return tipo;
+	}
+
+	// id do leilao, lance ou usuario, conforme o tipo
+	public int getId() {
+		return id;
+	}
+
+	public long getMomento() {
+		return momento;
+	}
+
+	@Override
+	public String toString() {
+		return sequencia + ":" + tipo + "(" + id + ")";
+	}
+}
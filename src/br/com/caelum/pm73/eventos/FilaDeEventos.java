@@ -0,0 +1,84 @@
+package br.com.caelum.pm73.eventos;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.hibernate.SessionFactory;
+
+/**
+ * Buffer circular sem locks para os eventos de alteracao. Cada produtor
+ * reserva uma sequencia com um incremento atomico e grava o evento na posicao
+ * correspondente; o proprio evento carrega a sequencia, entao um assinante sabe
+ * se a posicao ja foi publicada (sequencia igual a esperada), ainda nao foi
+ * (menor) ou foi sobrescrita porque ele ficou para tras (maior).
+ *
+ * Os produtores nunca esperam pelos assinantes: quem atrasar mais que a
+ * capacidade perde os eventos mais antigos e fica sabendo disso pela
+ * {@link Assinatura}.
+ */
+public class FilaDeEventos {
+
+	private static final Map<SessionFactory, FilaDeEventos> porBanco = new WeakHashMap<SessionFactory, FilaDeEventos>();
+
+	private final AtomicReferenceArray<Evento> eventos;
+	private final int mascara;
+	private final AtomicLong proxima = new AtomicLong();
+
+	public FilaDeEventos(int capacidade) {
+		if (Integer.bitCount(capacidade) != 1) {
+			throw new IllegalArgumentException("capacidade deve ser potencia de 2");
+		}
+		this.eventos = new AtomicReferenceArray<Evento>(capacidade);
+		this.mascara = capacidade - 1;
+	}
+
+	// fila usada pelos DAOs de um banco
+	public static FilaDeEventos de(SessionFactory sf) {
+		synchronized (porBanco) {
+			FilaDeEventos fila = porBanco.get(sf);
+			if (fila == null) {
+				fila = new FilaDeEventos(1 << 16);
+				porBanco.put(sf, fila);
+			}
+			return fila;
+		}
+	}
+
+	public long publica(TipoDeEvento tipo, int id) {
+		long sequencia = proxima.getAndIncrement();
+		eventos.set(posicao(sequencia), new Evento(sequencia, tipo, id, System.currentTimeMillis()));
+		return sequencia;
+	}
+
+	// assina a partir do proximo evento a ser publicado
+	public Assinatura assina() {
+		return new Assinatura(this, proxima.get());
+	}
+
+	// assina a partir de uma sequencia ja vista, reentregando o que ainda estiver no buffer
+	public Assinatura assinaDesde(long sequencia) {
+		return new Assinatura(this, Math.max(sequencia, getMaisAntiga()));
+	}
+
+	public int getCapacidade() {
+		return eventos.length();
+	}
+
+	public long getProxima() {
+		return proxima.get();
+	}
+
+	long getMaisAntiga() {
+		return Math.max(0, proxima.get() - eventos.length());
+	}
+
+	Evento evento(long sequencia) {
+		return eventos.get(posicao(sequencia));
+	}
+
+	private int posicao(long sequencia) {
+		return (int) (sequencia & mascara);
+	}
+}
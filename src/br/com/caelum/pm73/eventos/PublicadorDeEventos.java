@@ -0,0 +1,66 @@
+package br.com.caelum.pm73.eventos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+/**
+ * Publica os eventos de um DAO na fila so depois do commit da transacao em
+ * andamento; num rollback eles sao descartados. Sem transacao ativa o evento
+ * vai direto para a fila.
+ */
+public class PublicadorDeEventos {
+
+	private final Session session;
+	private final FilaDeEventos fila;
+
+	// eventos da transacao em andamento, ou null se nenhuma foi registrada ainda
+	private List<Pendente> pendentes;
+
+	private static class Pendente {
+		final TipoDeEvento tipo;
+		final int id;
+
+		Pendente(TipoDeEvento tipo, int id) {
+			this.tipo = tipo;
+			this.id = id;
+		}
+	}
+
+	public PublicadorDeEventos(Session session, FilaDeEventos fila) {
+		this.session = session;
+		this.fila = fila;
+	}
+
+	public void publica(TipoDeEvento tipo, int id) {
+		Transaction transacao = session.getTransaction();
+		if (!transacao.isActive()) {
+			fila.publica(tipo, id);
+			return;
+		}
+
+		if (pendentes == null) {
+			final List<Pendente> daTransacao = new ArrayList<Pendente>();
+			pendentes = daTransacao;
+			transacao.registerSynchronization(new Synchronization() {
+				public void beforeCompletion() {
+				}
+
+				public void afterCompletion(int status) {
+					pendentes = null;
+					if (status == Status.STATUS_COMMITTED) {
+						for (Pendente evento : daTransacao) {
+							fila.publica(evento.tipo, evento.id);
+						}
+					}
+				}
+			});
+		}
+		pendentes.add(new Pendente(tipo, id));
+	}
+}
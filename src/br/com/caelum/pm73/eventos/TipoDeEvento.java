@@ -0,0 +1,13 @@
+package br.com.caelum.pm73.eventos;
+
+public enum TipoDeEvento {
+
+	LEILAO_CRIADO,
+	LEILAO_ATUALIZADO,
+	LEILAO_ENCERRADO,
+	LEILAO_DELETADO,
+	LANCE_ADICIONADO,
+	USUARIO_CRIADO,
+	USUARIO_ATUALIZADO,
+	USUARIO_DELETADO
+}
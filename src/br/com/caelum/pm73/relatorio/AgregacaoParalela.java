@@ -0,0 +1,79 @@
+package br.com.caelum.pm73.relatorio;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+class AgregacaoParalela<K> extends RecursiveTask<Map<K, Estatistica>> {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int LIMITE_SEQUENCIAL = 10000;
+
+	private final List<LanceResumido> lances;
+	private final int inicio;
+	private final int fim;
+	private final Agrupamento<K> agrupamento;
+	private final Medida medida;
+
+	AgregacaoParalela(List<LanceResumido> lances, int inicio, int fim, Agrupamento<K> agrupamento, Medida medida) {
+		this.lances = lances;
+		this.inicio = inicio;
+		this.fim = fim;
+		this.agrupamento = agrupamento;
+		this.medida = medida;
+	}
+
+	@Override
+	protected Map<K, Estatistica> compute() {
+		if (fim - inicio <= LIMITE_SEQUENCIAL) {
+			return agregaSequencial();
+		}
+
+		int meio = (inicio + fim) >>> 1;
+		AgregacaoParalela<K> esquerda = new AgregacaoParalela<K>(lances, inicio, meio, agrupamento, medida);
+		AgregacaoParalela<K> direita = new AgregacaoParalela<K>(lances, meio, fim, agrupamento, medida);
+		esquerda.fork();
+		Map<K, Estatistica> resultado = direita.compute();
+		return junta(esquerda.join(), resultado);
+	}
+
+	private Map<K, Estatistica> agregaSequencial() {
+		Map<K, Estatistica> grupos = new HashMap<K, Estatistica>();
+		for (int i = inicio; i < fim; i++) {
+			LanceResumido lance = lances.get(i);
+			K chave = agrupamento.chave(lance);
+			if (chave == null) {
+				continue;
+			}
+			Estatistica estatistica = grupos.get(chave);
+			if (estatistica == null) {
+				estatistica = new Estatistica();
+				grupos.put(chave, estatistica);
+			}
+			double valor = medida.valor(lance);
+			if (!Double.isNaN(valor)) {
+				estatistica.adiciona(valor);
+			}
+		}
+		return grupos;
+	}
+
+	private Map<K, Estatistica> junta(Map<K, Estatistica> maior, Map<K, Estatistica> menor) {
+		if (maior.size() < menor.size()) {
+			Map<K, Estatistica> troca = maior;
+			maior = menor;
+			menor = troca;
+		}
+		for (Map.Entry<K, Estatistica> grupo : menor.entrySet()) {
+			Estatistica existente = maior.get(grupo.getKey());
+			if (existente == null) {
+				maior.put(grupo.getKey(), grupo.getValue());
+			} else {
+				existente.junta(grupo.getValue());
+			}
+		}
+		return maior;
+	}
+}
@@ -0,0 +1,7 @@
+package br.com.caelum.pm73.relatorio;
+
+public interface Agrupamento<K> {
+
+	// null quando o lance nao tem a chave (lance sem usuario, por exemplo): ele fica fora dos grupos
+	K chave(LanceResumido lance);
+}
@@ -0,0 +1,57 @@
+package br.com.caelum.pm73.relatorio;
+
+import java.util.Calendar;
+
+public class Agrupamentos {
+
+	private Agrupamentos() {
+	}
+
+	public static Agrupamento<Integer> porUsuario() {
+		return new Agrupamento<Integer>() {
+			public Integer chave(LanceResumido lance) {
+				return lance.getIdUsuario();
+			}
+		};
+	}
+
+	public static Agrupamento<Integer> porDono() {
+		return new Agrupamento<Integer>() {
+			public Integer chave(LanceResumido lance) {
+				return lance.getIdDono();
+			}
+		};
+	}
+
+	public static Agrupamento<Integer> porLeilao() {
+		return new Agrupamento<Integer>() {
+			public Integer chave(LanceResumido lance) {
+				return lance.getIdLeilao();
+			}
+		};
+	}
+
+	// chave no formato aaaammdd, no fuso padrao da JVM
+	public static Agrupamento<Integer> porDia() {
+		return new Agrupamento<Integer>() {
+			public Integer chave(LanceResumido lance) {
+				Calendar data = Calendar.getInstance();
+				data.setTimeInMillis(lance.getData());
+				return data.get(Calendar.YEAR) * 10000 + (data.get(Calendar.MONTH) + 1) * 100
+						+ data.get(Calendar.DAY_OF_MONTH);
+			}
+		};
+	}
+
+	// chave e o limite inferior da faixa: com largura 1000, um lance de 3500 cai na faixa 3000
+	public static Agrupamento<Double> porFaixaDeValor(final double largura) {
+		if (largura <= 0) {
+			throw new IllegalArgumentException("largura da faixa deve ser positiva");
+		}
+		return new Agrupamento<Double>() {
+			public Double chave(LanceResumido lance) {
+				return Math.floor(lance.getValor() / largura) * largura;
+			}
+		};
+	}
+}
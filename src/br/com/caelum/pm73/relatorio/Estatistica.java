@@ -0,0 +1,80 @@
+package br.com.caelum.pm73.relatorio;
+
+import java.util.Arrays;
+
+/**
+ * Acumula contagem, soma, minimo, maximo e os valores individuais (para os
+ * percentis) de um grupo. Nao e thread-safe: cada tarefa do fork/join tem as
+ * suas e elas sao combinadas com {@link #junta(Estatistica)}.
+ */
+public class Estatistica {
+
+	private long quantidade;
+	private double soma;
+	private double minimo = Double.POSITIVE_INFINITY;
+	private double maximo = Double.NEGATIVE_INFINITY;
+	private double[] valores = new double[8];
+	private boolean ordenado = true;
+
+	public void adiciona(double valor) {
+		if (quantidade == valores.length) {
+			valores = Arrays.copyOf(valores, valores.length * 2);
+		}
+		valores[(int) quantidade] = valor;
+		quantidade++;
+		soma += valor;
+		minimo = Math.min(minimo, valor);
+		maximo = Math.max(maximo, valor);
+		ordenado = false;
+	}
+
+	public Estatistica junta(Estatistica outra) {
+		int total = (int) (quantidade + outra.quantidade);
+		if (total > valores.length) {
+			valores = Arrays.copyOf(valores, Math.max(total, valores.length * 2));
+		}
+		System.arraycopy(outra.valores, 0, valores, (int) quantidade, (int) outra.quantidade);
+		quantidade = total;
+		soma += outra.soma;
+		minimo = Math.min(minimo, outra.minimo);
+		maximo = Math.max(maximo, outra.maximo);
+		ordenado = false;
+		return this;
+	}
+
+	public long getQuantidade() {
+		return quantidade;
+	}
+
+	public double getSoma() {
+		return soma;
+	}
+
+	public double getMinimo() {
+		return quantidade == 0 ? 0.0 : minimo;
+	}
+
+	public double getMaximo() {
+		return quantidade == 0 ? 0.0 : maximo;
+	}
+
+	public double getMedia() {
+		return quantidade == 0 ? 0.0 : soma / quantidade;
+	}
+
+	// percentil pelo metodo nearest-rank, com p entre 0 e 100
+	public double percentil(double p) {
+		if (p < 0 || p > 100) {
+			throw new IllegalArgumentException("percentil deve estar entre 0 e 100");
+		}
+		if (quantidade == 0) {
+			return 0.0;
+		}
+		if (!ordenado) {
+			Arrays.sort(valores, 0, (int) quantidade);
+			ordenado = true;
+		}
+		int posicao = (int) Math.ceil(p / 100.0 * quantidade);
+		return valores[Math.max(posicao, 1) - 1];
+	}
+}
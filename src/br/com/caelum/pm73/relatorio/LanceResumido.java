@@ -0,0 +1,77 @@
+package br.com.caelum.pm73.relatorio;
+
+import java.util.Calendar;
+
+/**
+ * Linha achatada de um lance com os dados do leilao que os relatorios usam,
+ * sem as referencias gerenciadas pelo Hibernate. Usuario e dono ausentes ficam
+ * null e um valor inicial ausente fica NaN, para nao se confundirem com zero.
+ */
+public class LanceResumido {
+
+	private final int idLance;
+	private final int idLeilao;
+	private final Integer idUsuario;
+	private final Integer idDono;
+	private final double valor;
+	private final double valorInicial;
+	private final long data;
+	private final boolean encerrado;
+
+	public LanceResumido(int idLance, int idLeilao, Integer idUsuario, Integer idDono, double valor, double valorInicial,
+			long data, boolean encerrado) {
+		this.idLance = idLance;
+		this.idLeilao = idLeilao;
+		this.idUsuario = idUsuario;
+		this.idDono = idDono;
+		this.valor = valor;
+		this.valorInicial = valorInicial;
+		this.data = data;
+		this.encerrado = encerrado;
+	}
+
+	public static LanceResumido deLinha(Object[] linha) {
+		Calendar data = (Calendar) linha[6];
+		return new LanceResumido(
+				(Integer) linha[0],
+				(Integer) linha[1],
+				(Integer) linha[2],
+				(Integer) linha[3],
+				(Double) linha[4],
+				linha[5] == null ? Double.NaN : (Double) linha[5],
+				data == null ? 0L : data.getTimeInMillis(),
+				(Boolean) linha[7]);
+	}
+
+	public int getIdLance() {
+		return idLance;
+	}
+
+	public int getIdLeilao() {
+		return idLeilao;
+	}
+
+	public Integer getIdUsuario() {
+		return idUsuario;
+	}
+
+	public Integer getIdDono() {
+		return idDono;
+	}
+
+	public double getValor() {
+		return valor;
+	}
+
+	public double getValorInicial() {
+		return valorInicial;
+	}
+
+	public long getData() {
+		return data;
+	}
+
+	public boolean isEncerrado() {
+		return encerrado;
+	}
+}
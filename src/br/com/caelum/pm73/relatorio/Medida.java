@@ -0,0 +1,7 @@
+package br.com.caelum.pm73.relatorio;
+
+public interface Medida {
+
+	// NaN quando o lance nao tem o valor: ele entra no grupo, mas nao na estatistica
+	double valor(LanceResumido lance);
+}
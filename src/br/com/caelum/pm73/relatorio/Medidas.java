@@ -0,0 +1,19 @@
+package br.com.caelum.pm73.relatorio;
+
+public class Medidas {
+
+	private Medidas() {
+	}
+
+	public static final Medida VALOR_DO_LANCE = new Medida() {
+		public double valor(LanceResumido lance) {
+			return lance.getValor();
+		}
+	};
+
+	public static final Medida VALOR_INICIAL_DO_LEILAO = new Medida() {
+		public double valor(LanceResumido lance) {
+			return lance.getValorInicial();
+		}
+	};
+}
@@ -0,0 +1,82 @@
+package br.com.caelum.pm73.relatorio;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import br.com.caelum.pm73.dao.LeilaoDao;
+
+/**
+ * Le os lances uma unica vez e calcula agregados agrupados em paralelo, no
+ * lugar de uma consulta por usuario. Os resultados seguem a mesma semantica
+ * das consultas do {@link LeilaoDao}.
+ */
+public class MotorDeRelatorios {
+
+	private final List<LanceResumido> lances;
+	private final ForkJoinPool pool;
+
+	// usa o pool comum da JVM; nenhum pool e criado por relatorio
+	public MotorDeRelatorios(List<LanceResumido> lances) {
+		this(lances, ForkJoinPool.commonPool());
+	}
+
+	// a lista nao e copiada: quem chama nao deve altera-la enquanto o motor estiver em uso
+	public MotorDeRelatorios(List<LanceResumido> lances, ForkJoinPool pool) {
+		this.lances = lances;
+		this.pool = pool;
+	}
+
+	public static MotorDeRelatorios doBanco(LeilaoDao leilaoDao) {
+		return new MotorDeRelatorios(leilaoDao.lancesResumidos());
+	}
+
+	public <K> Map<K, Estatistica> agrega(Agrupamento<K> agrupamento, Medida medida) {
+		return pool.invoke(new AgregacaoParalela<K>(lances, 0, lances.size(), agrupamento, medida));
+	}
+
+	// equivale a chamar getValorInicialMedioDoUsuario() para cada usuario que deu lance: como o avg
+	// do banco, ignora leiloes sem valor inicial, e quem so tem esses leiloes fica com media zero
+	public Map<Integer, Double> valorInicialMedioPorUsuario() {
+		Map<Integer, Estatistica> grupos = agrega(Agrupamentos.porUsuario(), Medidas.VALOR_INICIAL_DO_LEILAO);
+
+		Map<Integer, Double> medias = new HashMap<Integer, Double>();
+		for (Map.Entry<Integer, Estatistica> grupo : grupos.entrySet()) {
+			medias.put(grupo.getKey(), grupo.getValue().getMedia());
+		}
+		return medias;
+	}
+
+	public Map<Double, Long> histogramaDeLances(double larguraDaFaixa) {
+		Map<Double, Estatistica> faixas = agrega(Agrupamentos.porFaixaDeValor(larguraDaFaixa), Medidas.VALOR_DO_LANCE);
+
+		Map<Double, Long> histograma = new HashMap<Double, Long>();
+		for (Map.Entry<Double, Estatistica> faixa : faixas.entrySet()) {
+			histograma.put(faixa.getKey(), faixa.getValue().getQuantidade());
+		}
+		return histograma;
+	}
+
+	// mesmo criterio de LeilaoDao.disputadosEntre(): nao encerrado, valor inicial no intervalo e mais de 3 lances
+	public long quantidadeDeDisputadosEntre(final double inicio, final double fim) {
+		Map<Integer, Estatistica> porLeilao = agrega(Agrupamentos.porLeilao(), new Medida() {
+			public double valor(LanceResumido lance) {
+				// todo lance conta para o total do leilao; sem valor inicial o leilao nunca e elegivel,
+				// como no between do banco
+				double valorInicial = lance.getValorInicial();
+				boolean elegivel = !lance.isEncerrado() && !Double.isNaN(valorInicial) && valorInicial >= inicio
+						&& valorInicial <= fim;
+				return elegivel ? 1.0 : 0.0;
+			}
+		});
+
+		long disputados = 0;
+		for (Estatistica leilao : porLeilao.values()) {
+			if (leilao.getMinimo() == 1.0 && leilao.getQuantidade() > 3) {
+				disputados++;
+			}
+		}
+		return disputados;
+	}
+}
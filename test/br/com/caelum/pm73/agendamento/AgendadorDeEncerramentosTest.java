@@ -0,0 +1,128 @@
+package br.com.caelum.pm73.agendamento;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.MassaDeDados;
+import br.com.caelum.pm73.dao.UsuarioBuilder;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+public class AgendadorDeEncerramentosTest {
+
+	private MassaDeDados massa;
+	private Usuario mauricio;
+
+	@Before
+	public void antes() {
+		// o agendador abre as proprias sessoes, entao cada passo do teste faz commit
+		massa = MassaDeDados.chamada("vazia", MassaDeDados.VAZIA);
+		massa.getSession().close();
+		mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+	}
+
+	@Test
+	public void deveRecuperarOsPrazosDepoisDeUmRestart() {
+
+		Leilao vencido = new LeilaoBuilder().comNome("Geladeira").comDono(mauricio).encerraEm(daqui(-10)).constroi();
+		Leilao futuro = new LeilaoBuilder().comNome("Xbox").comDono(mauricio).encerraEm(daqui(3600)).constroi();
+		Leilao semPrazo = new LeilaoBuilder().comNome("Fogao").comDono(mauricio).constroi();
+		salva(vencido, futuro, semPrazo);
+
+		AgendadorDeEncerramentos agendador = new AgendadorDeEncerramentos(massa.getCriador());
+		assertEquals(0, agendador.getPendentes());
+
+		agendador.recupera();
+
+		assertEquals(2, agendador.getPendentes());
+		assertEquals(1, agendador.processa(agora()));
+		assertEquals(1, agendador.getPendentes());
+		assertTrue(estaEncerrado(vencido));
+	}
+
+	@Test
+	public void deveAgendarLeilaoGravadoDepoisDaRecuperacao() {
+
+		AgendadorDeEncerramentos agendador = new AgendadorDeEncerramentos(massa.getCriador());
+		agendador.recupera();
+
+		Leilao vencido = new LeilaoBuilder().comNome("Geladeira").comDono(mauricio).encerraEm(daqui(-5)).constroi();
+		salva(vencido);
+
+		assertEquals(1, agendador.processa(agora()));
+		assertEquals(0, agendador.getPendentes());
+		assertTrue(estaEncerrado(vencido));
+	}
+
+	@Test
+	public void deveCancelarQuandoOPrazoERemovidoPeloDao() {
+
+		AgendadorDeEncerramentos agendador = new AgendadorDeEncerramentos(massa.getCriador());
+
+		Leilao leilao = new LeilaoBuilder().comNome("Geladeira").comDono(mauricio).encerraEm(daqui(3600)).constroi();
+		salva(leilao);
+
+		assertEquals(0, agendador.processa(agora()));
+		assertEquals(1, agendador.getPendentes());
+
+		leilao.setDataEncerramento(null);
+		Session session = massa.getCriador().getSession();
+		try {
+			session.beginTransaction();
+			new LeilaoDao(session).atualiza(leilao);
+			session.getTransaction().commit();
+		} finally {
+			session.close();
+		}
+
+		assertEquals(0, agendador.processa(agora()));
+		assertEquals(0, agendador.getPendentes());
+	}
+
+	private void salva(Leilao... leiloes) {
+		Session session = massa.getCriador().getSession();
+		try {
+			session.beginTransaction();
+			new UsuarioDao(session).salvar(mauricio);
+			LeilaoDao leilaoDao = new LeilaoDao(session);
+			for (Leilao leilao : leiloes) {
+				leilaoDao.salvar(leilao);
+			}
+			session.getTransaction().commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	private boolean estaEncerrado(Leilao leilao) {
+		Session session = massa.getCriador().getSession();
+		try {
+			session.beginTransaction();
+			boolean encerrado = new LeilaoDao(session).porId(leilao.getId()).isEncerrado();
+			session.getTransaction().commit();
+			return encerrado;
+		} finally {
+			session.close();
+		}
+	}
+
+	private static Calendar daqui(int segundos) {
+		Calendar data = Calendar.getInstance();
+		data.add(Calendar.SECOND, segundos);
+		return data;
+	}
+
+	private static long agora() {
+		return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,67 @@
+package br.com.caelum.pm73.agendamento;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RodaDeTempoTest {
+
+	private static final long INICIO = 1600000000L;
+
+	@Test
+	public void deveVencerNoSegundoExatoMesmoEmNiveisAltos() {
+
+		RodaDeTempo roda = new RodaDeTempo(INICIO);
+		roda.agenda(1, INICIO + 5);
+		roda.agenda(2, INICIO + 3600 + 17);
+		roda.agenda(3, INICIO + 3 * 86400 + 1);
+
+		assertTrue(roda.avanca(INICIO + 4).isEmpty());
+		assertEquals(Arrays.asList(1), roda.avanca(INICIO + 5));
+
+		assertTrue(roda.avanca(INICIO + 3600 + 16).isEmpty());
+		assertEquals(Arrays.asList(2), roda.avanca(INICIO + 3600 + 17));
+
+		assertTrue(roda.avanca(INICIO + 3 * 86400).isEmpty());
+		assertEquals(Arrays.asList(3), roda.avanca(INICIO + 3 * 86400 + 1));
+		assertEquals(0, roda.getPendentes());
+	}
+
+	@Test
+	public void deveVencerImediatamentePrazosQueJaPassaram() {
+
+		RodaDeTempo roda = new RodaDeTempo(INICIO);
+		roda.agenda(1, INICIO - 100);
+
+		assertEquals(Arrays.asList(1), roda.avanca(INICIO));
+	}
+
+	@Test
+	public void naoDeveVencerPrazoCanceladoOuReagendado() {
+
+		RodaDeTempo roda = new RodaDeTempo(INICIO);
+		roda.agenda(1, INICIO + 10);
+		roda.agenda(2, INICIO + 10);
+		roda.cancela(1);
+		roda.agenda(2, INICIO + 20);
+
+		assertTrue(roda.avanca(INICIO + 10).isEmpty());
+		List<Integer> vencidos = roda.avanca(INICIO + 20);
+		assertEquals(Arrays.asList(2), vencidos);
+	}
+
+	@Test
+	public void deveGuardarPrazosAlemDeUmAno() {
+
+		RodaDeTempo roda = new RodaDeTempo(INICIO);
+		long daquiADoisAnos = INICIO + 2 * 366 * 86400L + 42;
+		roda.agenda(1, daquiADoisAnos);
+
+		assertTrue(roda.avanca(daquiADoisAnos - 1).isEmpty());
+		assertEquals(Arrays.asList(1), roda.avanca(daquiADoisAnos));
+	}
+}
@@ -0,0 +1,181 @@
+package br.com.caelum.pm73.armazem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CacheDeConsultas;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.MassaDeDados;
+import br.com.caelum.pm73.dao.UsuarioBuilder;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.eventos.Assinatura;
+import br.com.caelum.pm73.eventos.Evento;
+import br.com.caelum.pm73.eventos.FilaDeEventos;
+import br.com.caelum.pm73.eventos.TipoDeEvento;
+
+public class ArmazemDeLancesTest {
+
+	private Session session;
+	private UsuarioDao usuarioDao;
+	private LeilaoDao leilaoDao;
+	private ArmazemDeLances armazem;
+	private Usuario mauricio;
+	private Leilao leilao;
+
+	@Before
+	public void antes() {
+		session = MassaDeDados.chamada("vazia", MassaDeDados.VAZIA).getSession();
+		usuarioDao = new UsuarioDao(session);
+		leilaoDao = new LeilaoDao(session);
+		armazem = ArmazemDeLances.de(session.getSessionFactory());
+		session.beginTransaction();
+
+		mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		leilao = new LeilaoBuilder().comNome("Geladeira").comValor(1500.00).comDono(mauricio)
+				.comLance(Calendar.getInstance(), mauricio, 1600.0).comLance(Calendar.getInstance(), mauricio, 1700.0)
+				.constroi();
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(leilao);
+		session.getTransaction().commit();
+		session.beginTransaction();
+	}
+
+	@After
+	public void depois() {
+		session.getTransaction().rollback();
+		session.close();
+	}
+
+	@Test
+	public void deveCarregarOsLancesJaGravados() {
+
+		ColunasDeLances colunas = armazem.carrega(session, leilao.getId());
+
+		assertEquals(2, colunas.getTamanho());
+		assertEquals(1700.0, colunas.valor(colunas.maiores(1)[0]), 0.00001);
+	}
+
+	@Test
+	public void deveGravarNoBancoELevarParaAsColunasSoDepoisDoCommit() {
+
+		ColunasDeLances colunas = armazem.carrega(session, leilao.getId());
+		Assinatura assinatura = FilaDeEventos.de(session.getSessionFactory()).assina();
+
+		armazem.adiciona(session, leilao.getId(), mauricio.getId(), 1800.0, System.currentTimeMillis());
+
+		assertEquals(2, colunas.getTamanho());
+		assertEquals(3, session.getNamedQuery("Lance.colunasDoLeilao").setParameter("leilao", leilao.getId()).list()
+				.size());
+		assertTrue(assinatura.proximos(10).isEmpty());
+
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		assertEquals(3, colunas.getTamanho());
+		List<Evento> eventos = assinatura.proximos(10);
+		assertEquals(1, eventos.size());
+		assertEquals(TipoDeEvento.LANCE_ADICIONADO, eventos.get(0).getTipo());
+	}
+
+	@Test
+	public void naoDeveLevarParaAsColunasLanceDeTransacaoDesfeita() {
+
+		ColunasDeLances colunas = armazem.carrega(session, leilao.getId());
+		Assinatura assinatura = FilaDeEventos.de(session.getSessionFactory()).assina();
+
+		armazem.adiciona(session, leilao.getId(), mauricio.getId(), 1800.0, System.currentTimeMillis());
+		session.getTransaction().rollback();
+		session.beginTransaction();
+
+		assertEquals(2, colunas.getTamanho());
+		assertTrue(assinatura.proximos(10).isEmpty());
+	}
+
+	@Test
+	public void deveLevarParaAsColunasLanceGravadoPeloDao() {
+
+		ColunasDeLances colunas = armazem.carrega(session, leilao.getId());
+
+		leilao.adicionaLance(new Lance(Calendar.getInstance(), mauricio, 1800.0, null));
+		leilaoDao.salvar(leilao);
+
+		assertEquals(2, colunas.getTamanho());
+
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		assertEquals(3, colunas.getTamanho());
+		assertEquals(1800.0, colunas.valor(colunas.maiores(1)[0]), 0.00001);
+	}
+
+	@Test
+	public void deveLevarLanceCommitadoDuranteACargaSemDuplicar() {
+
+		// gravado antes de o leilao ser carregado e commitado depois da leitura
+		leilao.adicionaLance(new Lance(Calendar.getInstance(), mauricio, 1800.0, null));
+		leilaoDao.salvar(leilao);
+		ColunasDeLances colunas = armazem.carrega(session, leilao.getId());
+
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		assertEquals(3, colunas.getTamanho());
+		assertEquals(1800.0, colunas.valor(colunas.maiores(1)[0]), 0.00001);
+	}
+
+	@Test
+	public void deveInvalidarOCachePeloValorInicialAtualizado() {
+
+		armazem.carrega(session, leilao.getId());
+		armazem.adiciona(session, leilao.getId(), mauricio.getId(), 1800.0, System.currentTimeMillis());
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		leilao.setValorInicial(3000.0);
+		leilaoDao.atualiza(leilao);
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		// com tres lances ainda nao esta disputado, e o resultado vazio fica no cache
+		assertTrue(leilaoDao.disputadosEntre(2500.0, 3500.0).isEmpty());
+
+		armazem.adiciona(session, leilao.getId(), mauricio.getId(), 3100.0, System.currentTimeMillis());
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		assertEquals(1, leilaoDao.disputadosEntre(2500.0, 3500.0).size());
+	}
+
+	@Test
+	public void deveDeixarAInvalidacaoPorTabelaPendenteAteOFimDaTransacao() {
+
+		Leilao semValor = new LeilaoBuilder().comNome("Fogao").comDono(mauricio).constroi();
+		semValor.setValorInicial(null);
+		leilaoDao.salvar(semValor);
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		armazem.carrega(session, semValor.getId());
+		CacheDeConsultas cache = CacheDeConsultas.de(session.getSessionFactory());
+
+		armazem.adiciona(session, semValor.getId(), mauricio.getId(), 10.0, System.currentTimeMillis());
+		assertTrue(cache.temEscritasPendentes(session, cache.getDisputadosEntre()));
+
+		session.getTransaction().commit();
+		session.beginTransaction();
+		assertFalse(cache.temEscritasPendentes(session, cache.getDisputadosEntre()));
+	}
+}
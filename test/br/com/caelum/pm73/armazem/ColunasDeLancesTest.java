@@ -0,0 +1,59 @@
+package br.com.caelum.pm73.armazem;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ColunasDeLancesTest {
+
+	@Test
+	public void deveGuardarLancesEmMaisDeUmBloco() {
+
+		ColunasDeLances colunas = new ColunasDeLances(1);
+		int total = ColunasDeLances.LINHAS_POR_BLOCO + 10;
+		for (int i = 0; i < total; i++) {
+			colunas.adiciona(i * 10.0, 1000L + i, i % 3);
+		}
+
+		assertEquals(total, colunas.getTamanho());
+		assertEquals(ColunasDeLances.LINHAS_POR_BLOCO * 10.0, colunas.valor(ColunasDeLances.LINHAS_POR_BLOCO), 0.00001);
+		assertEquals(1000L + total - 1, colunas.data(total - 1));
+		assertEquals((total - 1) % 3, colunas.usuario(total - 1));
+	}
+
+	@Test
+	public void devePercorrerApenasOsLancesDoPeriodo() {
+
+		ColunasDeLances colunas = new ColunasDeLances(1);
+		for (int i = 0; i < 100; i++) {
+			colunas.adiciona(i, i * 1000L, 7);
+		}
+
+		final double[] soma = new double[1];
+		int visitados = colunas.percorre(10000L, 19000L, new VisitanteDeLances() {
+			public void visita(double valor, long data, int idUsuario) {
+				soma[0] += valor;
+			}
+		});
+
+		assertEquals(10, visitados);
+		assertEquals(145.0, soma[0], 0.00001);
+	}
+
+	@Test
+	public void deveDevolverOsMaioresLancesEmOrdemDecrescente() {
+
+		ColunasDeLances colunas = new ColunasDeLances(1);
+		double[] valores = { 300, 100, 900, 500, 700, 200 };
+		for (double valor : valores) {
+			colunas.adiciona(valor, 0L, 1);
+		}
+
+		int[] maiores = colunas.maiores(3);
+
+		assertEquals(3, maiores.length);
+		assertEquals(900.0, colunas.valor(maiores[0]), 0.00001);
+		assertEquals(700.0, colunas.valor(maiores[1]), 0.00001);
+		assertEquals(500.0, colunas.valor(maiores[2]), 0.00001);
+	}
+}
@@ -0,0 +1,36 @@
+package br.com.caelum.pm73.carga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramaDeLatenciasTest {
+
+	@Test
+	public void deveCalcularPercentisExatosParaValoresPequenos() {
+
+		HistogramaDeLatencias histograma = new HistogramaDeLatencias();
+		for (int i = 1; i <= 100; i++) {
+			histograma.registra(i);
+		}
+
+		assertEquals(100L, histograma.getTotal());
+		assertEquals(50L, histograma.percentil(50));
+		assertEquals(99L, histograma.percentil(99));
+		assertEquals(100L, histograma.getMaximo());
+	}
+
+	@Test
+	public void deveManterErroRelativoPequenoParaValoresGrandes() {
+
+		HistogramaDeLatencias histograma = new HistogramaDeLatencias();
+		for (int i = 1; i <= 1000; i++) {
+			histograma.registra(i * 1000L);
+		}
+
+		long p90 = histograma.percentil(90);
+		assertTrue(Math.abs(p90 - 900000) <= 900000 * 0.02);
+		assertEquals(1000000L, histograma.percentil(100));
+	}
+}
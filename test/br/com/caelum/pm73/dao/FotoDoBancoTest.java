@@ -0,0 +1,123 @@
+package br.com.caelum.pm73.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+public class FotoDoBancoTest {
+
+	private static final MassaDeDados.Carga LEILOES = new MassaDeDados.Carga() {
+		public void carrega(Session session) {
+			UsuarioDao usuarioDao = new UsuarioDao(session);
+			LeilaoDao leilaoDao = new LeilaoDao(session);
+
+			Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+			usuarioDao.salvar(mauricio);
+			leilaoDao.salvar(new LeilaoBuilder().comDono(mauricio).constroi());
+			leilaoDao.salvar(new LeilaoBuilder().comDono(mauricio).setEncerrado().constroi());
+		}
+	};
+
+	// lances de janeiro de 2020 ja arquivados em LANCE_202001 quando a foto e tirada
+	private static final MassaDeDados.Carga ARQUIVADOS = new MassaDeDados.Carga() {
+		public void carrega(Session session) {
+			Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+			new UsuarioDao(session).salvar(mauricio);
+			new LeilaoDao(session).salvar(new LeilaoBuilder().comDono(mauricio).setEncerrado()
+					.comLance(data(2020, Calendar.JANUARY, 10), mauricio, 100.0).constroi());
+			new ParticoesDeLance(session).arquiva(data(2020, Calendar.JUNE, 1));
+		}
+	};
+
+	private Session session;
+	private LeilaoDao leilaoDao;
+	private UsuarioDao usuarioDao;
+
+	@Before
+	public void antes() {
+		session = MassaDeDados.chamada("leiloes", LEILOES).getSession();
+		leilaoDao = new LeilaoDao(session);
+		usuarioDao = new UsuarioDao(session);
+		session.beginTransaction();
+	}
+
+	@After
+	public void depois() {
+		session.getTransaction().rollback();
+		session.close();
+	}
+
+	@Test
+	public void deveVoltarAoEstadoDaFotoMesmoAposCommit() {
+		usuarioDao.salvar(new Usuario("Joao", "joao@joao.com.br"));
+		leilaoDao.deletaEncerrados();
+		session.getTransaction().commit();
+		session.close();
+
+		session = MassaDeDados.chamada("leiloes", LEILOES).getSession();
+		leilaoDao = new LeilaoDao(session);
+		usuarioDao = new UsuarioDao(session);
+		session.beginTransaction();
+
+		assertEquals(1L, (long) leilaoDao.total());
+		assertEquals(2, session.createQuery("from Leilao").list().size());
+		assertNull(usuarioDao.porNomeEEmail("Joao", "joao@joao.com.br"));
+		assertNotNull(usuarioDao.porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br"));
+	}
+
+	@Test
+	public void deveContinuarGerandoIdsDepoisDaRestauracao() {
+		Usuario joao = new Usuario("Joao", "joao@joao.com.br");
+		usuarioDao.salvar(joao);
+
+		Leilao leilao = new LeilaoBuilder().comDono(joao).constroi();
+		leilaoDao.salvar(leilao);
+
+		assertNotNull(leilaoDao.porId(leilao.getId()));
+	}
+
+	@Test
+	public void deveRestaurarAsParticoesDaFoto() {
+		Session arquivados = MassaDeDados.chamada("arquivados", ARQUIVADOS).getSession();
+		try {
+			arquivados.beginTransaction();
+			Usuario mauricio = new UsuarioDao(arquivados).porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br");
+			new LeilaoDao(arquivados).salvar(new LeilaoBuilder().comDono(mauricio).setEncerrado()
+					.comLance(data(2020, Calendar.MARCH, 10), mauricio, 200.0).constroi());
+			new ParticoesDeLance(arquivados).arquiva(data(2020, Calendar.JUNE, 1));
+			arquivados.createSQLQuery("delete from LANCE_202001").executeUpdate();
+			arquivados.getTransaction().commit();
+		} finally {
+			arquivados.close();
+		}
+
+		arquivados = MassaDeDados.chamada("arquivados", ARQUIVADOS).getSession();
+		try {
+			arquivados.beginTransaction();
+			assertEquals(Arrays.asList("LANCE_202001"), new ParticoesDeLance(arquivados).particoes());
+			Number lances = (Number) arquivados.createSQLQuery("select count(*) from LANCE_202001").uniqueResult();
+			assertEquals(1L, lances.longValue());
+			arquivados.getTransaction().commit();
+		} finally {
+			arquivados.close();
+		}
+	}
+
+	private static Calendar data(int ano, int mes, int dia) {
+		Calendar data = Calendar.getInstance();
+		data.clear();
+		data.set(ano, mes, dia);
+		return data;
+	}
+}
@@ -0,0 +1,48 @@
+package br.com.caelum.pm73.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class IndiceDeUsuariosTest {
+
+	@Test
+	public void deveRemoverPeloIdSemDeixarAChaveParaTras() {
+
+		IndiceDeUsuarios indice = new IndiceDeUsuarios(10);
+		indice.guarda(ids("Maria", 1, "Joao", 2));
+
+		indice.remove(1);
+
+		assertNull(indice.busca(IndiceDeUsuarios.chave("Maria", "maria")));
+		assertEquals(Integer.valueOf(2), indice.busca(IndiceDeUsuarios.chave("Joao", "joao")));
+	}
+
+	@Test
+	public void deveEsquecerOMaisAntigoAoPassarDaCapacidade() {
+
+		IndiceDeUsuarios indice = new IndiceDeUsuarios(2);
+		indice.guarda(ids("Maria", 1, "Joao", 2));
+		indice.guarda(ids("Ana", 3));
+
+		assertNull(indice.busca(IndiceDeUsuarios.chave("Maria", "maria")));
+
+		// o id descartado nao pode remover a chave que outro usuario passou a ocupar
+		indice.guarda(ids("Maria", 4));
+		indice.remove(1);
+		assertEquals(Integer.valueOf(4), indice.busca(IndiceDeUsuarios.chave("Maria", "maria")));
+	}
+
+	private static Map<String, Integer> ids(Object... nomesEIds) {
+		Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < nomesEIds.length; i += 2) {
+			String nome = (String) nomesEIds[i];
+			ids.put(IndiceDeUsuarios.chave(nome, nome.toLowerCase()), (Integer) nomesEIds[i + 1]);
+		}
+		return ids;
+	}
+}
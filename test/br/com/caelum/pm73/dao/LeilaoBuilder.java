@@ -16,6 +16,7 @@ public class LeilaoBuilder {
 	private boolean usado;
 	private Calendar dataAbertura;
 	private boolean encerrado;
+	private Calendar dataEncerramento;
 	private List<Lance> lances = new ArrayList<Lance>();
 
 	public LeilaoBuilder(Usuario dono, double valor, String nome, boolean usado, Calendar dataAbertura) {
@@ -60,6 +61,11 @@ public class LeilaoBuilder {
 		return this;
 	}
 
+	public LeilaoBuilder encerraEm(Calendar dataEncerramento) {
+		this.dataEncerramento = dataEncerramento;
+		return this;
+	}
+
 	public Calendar getDataAbertura() {
 		return dataAbertura;
 	}
@@ -80,6 +86,7 @@ public class LeilaoBuilder {
 	public Leilao constroi() {
 		Leilao leilao = new Leilao(nome, valor, dono, usado);
 		leilao.setDataAbertura(dataAbertura);
+		leilao.setDataEncerramento(dataEncerramento);
 		
 		if (encerrado)
 			leilao.encerra();
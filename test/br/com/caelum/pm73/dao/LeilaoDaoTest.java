@@ -3,15 +3,19 @@ package br.com.caelum.pm73.dao;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.Session;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import br.com.caelum.pm73.dominio.Lance;
 import br.com.caelum.pm73.dominio.Leilao;
 import br.com.caelum.pm73.dominio.Usuario;
 import junit.framework.Assert;
@@ -25,7 +29,7 @@ public class LeilaoDaoTest {
 	@Before
 	public void antes() {
 
-		session = new CriadorDeSessao().getSession();
+		session = MassaDeDados.chamada("vazia", MassaDeDados.VAZIA).getSession();
 		usuarioDao = new UsuarioDao(session);
 		leilaoDao = new LeilaoDao(session);
 		/**
@@ -241,6 +245,59 @@ public class LeilaoDaoTest {
 		assertEquals(1, leiloesNaoEncerrados.size());
 	}
 
+	@Test
+	public void deveReaproveitarResultadoDeDisputadosAteUmNovoLance() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+
+		Leilao leilao = new LeilaoBuilder().comNome("PS5").comValor(3000.00).comDono(mauricio)
+				.comLance(Calendar.getInstance(), mauricio, 3000.0).comLance(Calendar.getInstance(), mauricio, 3100.0)
+				.comLance(Calendar.getInstance(), mauricio, 3200.0).constroi();
+
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(leilao);
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		RegiaoDeCache regiao = CacheDeConsultas.de(session.getSessionFactory()).getDisputadosEntre();
+		long acertos = regiao.getAcertos();
+
+		assertEquals(0, leilaoDao.disputadosEntre(2000, 4000).size());
+		assertEquals(0, leilaoDao.disputadosEntre(2000, 4000).size());
+		assertEquals(acertos + 1, regiao.getAcertos());
+
+		leilao.adicionaLance(new Lance(Calendar.getInstance(), mauricio, 3300.0, leilao));
+		leilaoDao.salvar(leilao);
+
+		assertEquals(1, leilaoDao.disputadosEntre(2000, 4000).size());
+	}
+
+	@Test
+	public void naoDeveGuardarNoCacheResultadoDeTransacaoComEscritasPendentes() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		Leilao leilao = new LeilaoBuilder().comNome("PS5").comValor(3000.00).comDono(mauricio).diasAtras(2).constroi();
+
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(leilao);
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		Calendar inicio = Calendar.getInstance();
+		inicio.add(Calendar.DAY_OF_MONTH, -10);
+		Calendar fim = Calendar.getInstance();
+
+		leilao.encerra();
+		leilaoDao.atualiza(leilao);
+
+		assertEquals(0, leilaoDao.porPeriodo(inicio, fim).size());
+
+		// outra transacao nao pode receber um resultado que ainda nao foi confirmado
+		RegiaoDeCache regiao = CacheDeConsultas.de(session.getSessionFactory()).getPorPeriodo();
+		List<Object> chave = Arrays.<Object> asList((double) inicio.getTimeInMillis(), (double) fim.getTimeInMillis());
+		assertNull(regiao.busca(chave));
+	}
+
 	@Test
 	public void deveRetornarNumeroDeLeiloesDoUsuario() {
 
@@ -334,6 +391,41 @@ public class LeilaoDaoTest {
 		assertEquals(1500, valorMedio, 0.00001);
 	}
 
+	@Test
+	public void deveRetornarLeiloesEMediasDeVariosUsuariosDeUmaVez() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		Usuario marcos = new UsuarioBuilder().comNome("Marcos").comEmail("marcos@marcos.com.br").constroi();
+		Usuario semLances = new UsuarioBuilder().comNome("Joao").comEmail("joao@joao.com.br").constroi();
+
+		Leilao leilao1 = new LeilaoBuilder().comNome("Geladeira").comValor(1000.00).comDono(mauricio)
+				.comLance(Calendar.getInstance(), mauricio, 1000.0).comLance(Calendar.getInstance(), marcos, 1100.0)
+				.comLance(Calendar.getInstance(), mauricio, 1200.0).constroi();
+
+		Leilao leilao2 = new LeilaoBuilder().comNome("PS5").comValor(2000.00).comDono(mauricio)
+				.comLance(Calendar.getInstance(), mauricio, 3000.0).constroi();
+
+		usuarioDao.salvar(mauricio);
+		usuarioDao.salvar(marcos);
+		usuarioDao.salvar(semLances);
+
+		leilaoDao.salvar(leilao1);
+		leilaoDao.salvar(leilao2);
+
+		List<Usuario> usuarios = Arrays.asList(mauricio, marcos, semLances);
+		Map<Usuario, List<Leilao>> leiloes = leilaoDao.listaLeiloesDosUsuarios(usuarios);
+		Map<Usuario, Double> medias = leilaoDao.getValorInicialMedioDosUsuarios(usuarios);
+
+		assertEquals(2, leiloes.get(mauricio).size());
+		assertEquals(1, leiloes.get(marcos).size());
+		assertTrue(leiloes.get(semLances).isEmpty());
+
+		assertEquals(leilaoDao.getValorInicialMedioDoUsuario(mauricio), medias.get(mauricio), 0.00001);
+		assertEquals(1000.0, medias.get(marcos), 0.00001);
+		assertEquals(0.0, medias.get(semLances), 0.00001);
+		assertEquals(0.0, leilaoDao.getValorInicialMedioDoUsuario(semLances), 0.00001);
+	}
+
 	@Test
 	public void deveDeletarLeilao() {
 
@@ -353,6 +445,124 @@ public class LeilaoDaoTest {
 		assertNull(leilaoDao.porId(leilao1.getId()));
 	}
 
+	@Test
+	public void deveEncerrarLeiloesPorIdSemCarregarEntidades() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+
+		Calendar prazo = Calendar.getInstance();
+		Leilao vencido = new LeilaoBuilder().comNome("Geladeira").comValor(1500.00).comDono(mauricio).encerraEm(prazo)
+				.constroi();
+		Leilao aberto = new LeilaoBuilder().comNome("Xbox").comValor(700.00).comDono(mauricio).constroi();
+
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(vencido);
+		leilaoDao.salvar(aberto);
+		session.flush();
+
+		assertEquals(1, leilaoDao.pendentesDeEncerramento().size());
+
+		int encerrados = leilaoDao.encerra(Arrays.asList(vencido.getId()), Calendar.getInstance());
+		session.clear();
+
+		assertEquals(1, encerrados);
+		assertEquals(1L, (long) leilaoDao.total());
+		assertEquals(0, leilaoDao.pendentesDeEncerramento().size());
+	}
+
+	@Test
+	public void naoDeveEncerrarLeilaoCujoPrazoFoiProrrogadoNoBanco() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+
+		Calendar prorrogado = Calendar.getInstance();
+		prorrogado.add(Calendar.HOUR, 1);
+		Leilao leilao = new LeilaoBuilder().comNome("Geladeira").comValor(1500.00).comDono(mauricio)
+				.encerraEm(prorrogado).constroi();
+
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(leilao);
+		session.flush();
+
+		int encerrados = leilaoDao.encerra(Arrays.asList(leilao.getId()), Calendar.getInstance());
+		session.clear();
+
+		assertEquals(0, encerrados);
+		assertEquals(1L, (long) leilaoDao.total());
+	}
+
+	@Test
+	public void deveLimparContextoDePersistenciaAoAtingirOLimiteDoLote() {
+
+		ModoDeLote lote = new ModoDeLote(3);
+		UsuarioDao usuarioDaoEmLote = new UsuarioDao(session, lote);
+		LeilaoDao leilaoDaoEmLote = new LeilaoDao(session, lote);
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		usuarioDaoEmLote.salvar(mauricio);
+
+		for (int i = 0; i < 5; i++) {
+			leilaoDaoEmLote.salvar(new LeilaoBuilder().comNome("Leilao " + i).comValor(100.0).comDono(mauricio)
+					.constroi());
+		}
+
+		assertEquals(2, lote.getLimpezas());
+		assertEquals(3, lote.getMaiorContexto());
+		assertEquals(5L, (long) leilaoDao.total());
+	}
+
+	@Test
+	public void deveGravarAlteracaoDeLeilaoLidoEmModoDeLote() {
+
+		LeilaoDao leilaoDaoEmLote = new LeilaoDao(session, new ModoDeLote(100));
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		usuarioDao.salvar(mauricio);
+		leilaoDaoEmLote.salvar(new LeilaoBuilder().comNome("PS5").comValor(3000.0).comDono(mauricio).diasAtras(2)
+				.constroi());
+		session.flush();
+		session.clear();
+
+		Calendar inicio = Calendar.getInstance();
+		inicio.add(Calendar.DAY_OF_MONTH, -10);
+		Leilao leilao = leilaoDaoEmLote.porPeriodo(inicio, Calendar.getInstance()).get(0);
+		leilao.encerra();
+		leilaoDaoEmLote.atualiza(leilao);
+		session.flush();
+		session.clear();
+
+		assertTrue(leilaoDao.porId(leilao.getId()).isEncerrado());
+	}
+
+	@Test
+	public void deveReaproveitarStatementAoRepetirConsultaNomeada() {
+
+		// contadores da fabrica desta sessao; outros testes podem ja ter usado a consulta
+		EstatisticasDeConsultas estatisticas = EstatisticasDeConsultas.de(session.getSessionFactory());
+		long preparacoesAntes = preparacoes(estatisticas.daConsulta("Leilao.novos"));
+		long reusosAntes = reusos(estatisticas.daConsulta("Leilao.novos"));
+
+		leilaoDao.novos();
+		leilaoDao.novos();
+
+		// a conexao do pool pode ja ter preparado a consulta num teste anterior
+		EstatisticasDeConsultas.Contador novos = estatisticas.daConsulta("Leilao.novos");
+		assertNotNull(novos);
+		long preparacoes = novos.getPreparacoes() - preparacoesAntes;
+		long reusos = novos.getReusos() - reusosAntes;
+		assertTrue(preparacoes <= 1);
+		assertTrue(reusos >= 1);
+		assertEquals(2L, preparacoes + reusos);
+	}
+
+	private static long preparacoes(EstatisticasDeConsultas.Contador contador) {
+		return contador == null ? 0L : contador.getPreparacoes();
+	}
+
+	private static long reusos(EstatisticasDeConsultas.Contador contador) {
+		return contador == null ? 0L : contador.getReusos();
+	}
+
 	@Test
 	public void deveAlterarDadosDeUsuario() {
 
@@ -0,0 +1,70 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.Session;
+
+/**
+ * Massa de dados nomeada, carregada uma unica vez num banco em memoria e
+ * restaurada por {@link FotoDoBanco} a cada sessao aberta. Cada thread recebe
+ * o seu proprio banco, entao testes em paralelo nao enxergam os dados uns dos
+ * outros.
+ */
+public class MassaDeDados {
+
+	public interface Carga {
+		void carrega(Session session);
+	}
+
+	// banco vazio, para testes que montam os proprios dados com os builders
+	public static final Carga VAZIA = new Carga() {
+		public void carrega(Session session) {
+		}
+	};
+
+	private static final Map<String, MassaDeDados> carregadas = new HashMap<String, MassaDeDados>();
+
+	private final CriadorDeSessao criador;
+
+	private MassaDeDados(CriadorDeSessao criador) {
+		this.criador = criador;
+	}
+
+	public static synchronized MassaDeDados chamada(String nome, Carga carga) {
+		String banco = nome + "_" + Thread.currentThread().getId();
+		MassaDeDados massa = carregadas.get(banco);
+		if (massa == null) {
+			massa = new MassaDeDados(CriadorDeSessao.emMemoria(banco));
+			massa.carrega(carga);
+			carregadas.put(banco, massa);
+		}
+		return massa;
+	}
+
+	private void carrega(Carga carga) {
+		Session session = criador.getSession();
+		try {
+			session.beginTransaction();
+			carga.carrega(session);
+			new FotoDoBanco(session).tira();
+			session.getTransaction().commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	// sessao sobre a massa intacta, mesmo que o teste anterior tenha feito commit
+	public Session getSession() {
+		Session session = criador.getSession();
+		session.beginTransaction();
+		new FotoDoBanco(session).restaura();
+		session.getTransaction().commit();
+		return session;
+	}
+
+	// para codigo que abre as proprias sessoes, como o agendador de encerramentos
+	public CriadorDeSessao getCriador() {
+		return criador;
+	}
+}
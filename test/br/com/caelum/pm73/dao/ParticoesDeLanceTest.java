@@ -0,0 +1,181 @@
+package br.com.caelum.pm73.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.relatorio.MotorDeRelatorios;
+
+public class ParticoesDeLanceTest {
+
+	private CriadorDeSessao criador;
+	private Session session;
+	private UsuarioDao usuarioDao;
+	private LeilaoDao leilaoDao;
+	private ParticoesDeLance particoes;
+
+	private Usuario mauricio;
+	private Leilao geladeira;
+	private Leilao xbox;
+	private Leilao ps5;
+
+	// criar particoes faz commit no HSQLDB, entao cada teste usa um banco em memoria descartavel
+	@Before
+	public void antes() {
+		criador = CriadorDeSessao.emMemoria("particoes");
+		session = criador.getSession();
+		usuarioDao = new UsuarioDao(session);
+		leilaoDao = new LeilaoDao(session);
+		particoes = new ParticoesDeLance(session);
+		session.beginTransaction();
+
+		mauricio = new Usuario("Mauricio", "mauricio@mauricio.com.br");
+		Usuario marcos = new Usuario("Marcos", "marcos@marcos.com.br");
+		usuarioDao.salvar(mauricio);
+		usuarioDao.salvar(marcos);
+
+		geladeira = new LeilaoBuilder().comNome("Geladeira").comValor(1000.0).comDono(marcos).setEncerrado()
+				.comLance(data(2020, Calendar.JANUARY, 10), mauricio, 1100.0).constroi();
+		xbox = new LeilaoBuilder().comNome("Xbox").comValor(3000.0).comDono(marcos).setEncerrado()
+				.comLance(data(2020, Calendar.MARCH, 10), mauricio, 3100.0).constroi();
+		ps5 = new LeilaoBuilder().comNome("PS5").comValor(5000.0).comDono(marcos)
+				.comLance(data(2020, Calendar.JANUARY, 20), mauricio, 5100.0).constroi();
+		leilaoDao.salvar(geladeira);
+		leilaoDao.salvar(xbox);
+		leilaoDao.salvar(ps5);
+	}
+
+	@After
+	public void depois() throws Exception {
+		session.close();
+		criador.fecha();
+	}
+
+	@Test
+	public void deveArquivarSoLancesAntigosDeLeiloesEncerrados() {
+		int movidos = particoes.arquiva(data(2020, Calendar.JUNE, 1));
+
+		assertEquals(2, movidos);
+		assertEquals(Arrays.asList("LANCE_202001", "LANCE_202003"), particoes.particoes());
+		assertEquals(1L, conta("LANCE"));
+		assertEquals(1L, conta("LANCE_202001"));
+	}
+
+	@Test
+	public void deveContinuarEnxergandoLancesArquivadosNasConsultasDoDao() {
+		particoes.arquiva(data(2020, Calendar.JUNE, 1));
+
+		List<Leilao> leiloes = leilaoDao.listaLeiloesDoUsuario(mauricio);
+
+		assertEquals(3, leiloes.size());
+		assertEquals(3000.0, leilaoDao.getValorInicialMedioDoUsuario(mauricio), 0.00001);
+		assertEquals(3, leilaoDao.listaLeiloesDosUsuarios(Arrays.asList(mauricio)).get(mauricio).size());
+	}
+
+	@Test
+	public void deveDevolverMediaZeroQuandoOsLeiloesArquivadosNaoTemValorInicial() {
+		Usuario joao = new Usuario("Joao", "joao@joao.com.br");
+		usuarioDao.salvar(joao);
+		Leilao semValor = new LeilaoBuilder().comNome("Fogao").comDono(mauricio).setEncerrado()
+				.comLance(data(2020, Calendar.JANUARY, 15), joao, 10.0).constroi();
+		semValor.setValorInicial(null);
+		leilaoDao.salvar(semValor);
+
+		particoes.arquiva(data(2020, Calendar.JUNE, 1));
+
+		assertEquals(0.0, leilaoDao.getValorInicialMedioDoUsuario(joao), 0.00001);
+	}
+
+	@Test
+	public void deveGuardarAListaDeParticoesAteArquivarDeNovo() {
+		assertTrue(particoes.particoes().isEmpty());
+
+		// criada por fora: so aparece quando a lista guardada e descartada
+		session.createSQLQuery("create table LANCE_201901 (ID INTEGER NOT NULL PRIMARY KEY, DATA TIMESTAMP, "
+				+ "VALOR DOUBLE NOT NULL, LEILAO_ID INTEGER, USUARIO_ID INTEGER)").executeUpdate();
+		assertTrue(particoes.particoes().isEmpty());
+
+		particoes.arquiva(data(2020, Calendar.JUNE, 1));
+
+		assertEquals(Arrays.asList("LANCE_201901", "LANCE_202001", "LANCE_202003"), particoes.particoes());
+	}
+
+	@Test
+	public void deveIncluirLancesArquivadosNosRelatorios() {
+		particoes.arquiva(data(2020, Calendar.JUNE, 1));
+
+		assertEquals(3, leilaoDao.lancesResumidos().size());
+		assertEquals(leilaoDao.getValorInicialMedioDoUsuario(mauricio),
+				MotorDeRelatorios.doBanco(leilaoDao).valorInicialMedioPorUsuario().get(mauricio.getId()), 0.00001);
+	}
+
+	@Test
+	public void deveLerSoAsParticoesDoPeriodo() {
+		particoes.arquiva(data(2020, Calendar.JUNE, 1));
+
+		List<Leilao> leiloes = particoes.leiloesDoUsuario(mauricio, data(2020, Calendar.FEBRUARY, 1),
+				data(2020, Calendar.MARCH, 31));
+
+		assertEquals(1, leiloes.size());
+		assertEquals("Xbox", leiloes.get(0).getNome());
+		assertEquals(3000.0, particoes.valorInicialMedioDoUsuario(mauricio, data(2020, Calendar.FEBRUARY, 1),
+				data(2020, Calendar.MARCH, 31)), 0.00001);
+	}
+
+	@Test
+	public void deveRemoverLancesArquivadosAoDeletarLeilao() {
+		particoes.arquiva(data(2020, Calendar.JUNE, 1));
+
+		leilaoDao.deleta(leilaoDao.porId(geladeira.getId()));
+		leilaoDao.deletaEncerrados();
+
+		assertEquals(0L, conta("LANCE_202001"));
+		assertEquals(0L, conta("LANCE_202003"));
+	}
+
+	@Test
+	public void deveDestacarParticaoParaUmBancoProprio() throws Exception {
+		particoes.arquiva(data(2020, Calendar.JUNE, 1));
+		File diretorio = new File(System.getProperty("java.io.tmpdir"), "particoes-" + System.nanoTime());
+		String arquivo = new File(diretorio, "lances").getPath();
+
+		int copiados = particoes.destaca(202001, arquivo);
+
+		assertEquals(1, copiados);
+		assertEquals(Arrays.asList("LANCE_202003"), particoes.particoes());
+
+		Connection destacado = DriverManager.getConnection("jdbc:hsqldb:file:" + arquivo + ";shutdown=true", "sa", "");
+		try {
+			ResultSet total = destacado.createStatement().executeQuery("select count(*) from LANCE_202001");
+			assertTrue(total.next());
+			assertEquals(1, total.getInt(1));
+		} finally {
+			destacado.close();
+		}
+	}
+
+	private long conta(String tabela) {
+		return ((Number) session.createSQLQuery("select count(*) from " + tabela).uniqueResult()).longValue();
+	}
+
+	private static Calendar data(int ano, int mes, int dia) {
+		Calendar data = Calendar.getInstance();
+		data.clear();
+		data.set(ano, mes, dia);
+		return data;
+	}
+}
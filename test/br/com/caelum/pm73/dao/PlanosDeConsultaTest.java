@@ -0,0 +1,68 @@
+package br.com.caelum.pm73.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PlanosDeConsultaTest {
+
+	private CriadorDeSessao criador;
+
+	@Before
+	public void antes() {
+		criador = CriadorDeSessao.emMemoria("planos");
+		PlanosDeConsulta.semeia(criador);
+	}
+
+	@After
+	public void depois() throws Exception {
+		criador.fecha();
+	}
+
+	@Test
+	public void naoDevePiorarOsPlanosDaLinhaDeBase() throws Exception {
+		Map<String, PlanoDeConsulta> base = PlanosDeConsulta.le(new File(PlanosDeConsulta.LINHA_DE_BASE));
+		Map<String, PlanoDeConsulta> atuais = new PlanosDeConsulta(criador).captura();
+
+		List<String> regressoes = PlanosDeConsulta.regressoes(base, atuais, PlanosDeConsulta.FATOR_DE_CUSTO);
+
+		assertTrue(regressoes + "\n" + PlanosDeConsulta.relatorio(atuais), regressoes.isEmpty());
+	}
+
+	@Test
+	public void deveAcusarPerdaDeIndiceECustoAcimaDoLimite() {
+		Map<String, PlanoDeConsulta> base = new TreeMap<String, PlanoDeConsulta>();
+		base.put("Leilao.porPeriodo", PlanoDeConsulta.daLinhaDeBase("Leilao.porPeriodo|0|LEILAO=INDEX PRED"));
+		base.put("Leilao.novos", PlanoDeConsulta.daLinhaDeBase("Leilao.novos|1000|LEILAO=FULL SCAN"));
+
+		Map<String, PlanoDeConsulta> atuais = new TreeMap<String, PlanoDeConsulta>();
+		atuais.put("Leilao.porPeriodo", PlanoDeConsulta.daLinhaDeBase("Leilao.porPeriodo|1000|LEILAO=FULL SCAN"));
+		atuais.put("Leilao.novos", PlanoDeConsulta.daLinhaDeBase("Leilao.novos|1400|LEILAO=FULL SCAN"));
+
+		List<String> regressoes = PlanosDeConsulta.regressoes(base, atuais, 1.5);
+
+		assertEquals(2, regressoes.size());
+		assertTrue(regressoes.get(0).startsWith("Leilao.porPeriodo: perdeu o acesso por indice em LEILAO"));
+		assertTrue(regressoes.get(1).startsWith("Leilao.porPeriodo: custo 1000"));
+	}
+
+	@Test
+	public void deveLerOPlanoDoExplainDoHsqldb() {
+		String explain = "[range variable 1\n  join type=INNER\n  table=LANCE\n  alias=LANCE0_\n"
+				+ "  cardinality=5000\n  access=FULL SCAN\n][range variable 2\n  join type=INNER\n"
+				+ "  table=LEILAO\n  alias=LEILAO1_\n  cardinality=1000\n  access=INDEX PRED\n]";
+
+		PlanoDeConsulta plano = PlanoDeConsulta.doExplain("Lance.resumidos", "select ...", explain);
+
+		assertEquals(5000, plano.getCusto());
+		assertEquals("Lance.resumidos|5000|LANCE=FULL SCAN,LEILAO=INDEX PRED", plano.paraLinhaDeBase());
+	}
+}
@@ -1,6 +1,10 @@
 package br.com.caelum.pm73.dao;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Arrays;
+import java.util.List;
 
 import org.hibernate.Session;
 import org.junit.After;
@@ -18,7 +22,7 @@ public class UsuarioDaoTest {
 	@Before
 	public void antes() {
 		
-		session = new CriadorDeSessao().getSession();
+		session = MassaDeDados.chamada("vazia", MassaDeDados.VAZIA).getSession();
 		usuarioDao = new UsuarioDao(session);
 		session.beginTransaction();
 	
@@ -43,6 +47,33 @@ public class UsuarioDaoTest {
 		assertEquals("joao@dasilva.com.br", usuario.getEmail());
 	}
 
+	@Test
+	public void deveEncontrarOuCriarUsuariosEmLote() {
+
+		Usuario existente = new Usuario("Joao da Silva", "joao@dasilva.com.br");
+		usuarioDao.salvar(existente);
+		session.flush();
+
+		List<Usuario> dados = Arrays.asList(new Usuario("Maria", "maria@maria.com.br"),
+				new Usuario("Joao da Silva", "joao@dasilva.com.br"),
+				new Usuario("Joao da Silva", "outro@dasilva.com.br"),
+				new Usuario("Maria", "maria@maria.com.br"));
+
+		List<Usuario> usuarios = usuarioDao.encontraOuCria(dados);
+
+		assertEquals(4, usuarios.size());
+		assertEquals(existente.getId(), usuarios.get(1).getId());
+		assertEquals(usuarios.get(0).getId(), usuarios.get(3).getId());
+		assertEquals("outro@dasilva.com.br", usuarios.get(2).getEmail());
+		assertNotNull(usuarioDao.porNomeEEmail("Maria", "maria@maria.com.br"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void naoDeveAceitarUsuarioSemEmailNoLote() {
+
+		usuarioDao.encontraOuCria(Arrays.asList(new Usuario("Maria", "maria@maria.com.br"), new Usuario("Joao", null)));
+	}
+
 	@Test
 	public void deveRetornarNuloSeNaoEncontrarUsuario() {
 
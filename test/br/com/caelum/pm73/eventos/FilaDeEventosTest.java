@@ -0,0 +1,61 @@
+package br.com.caelum.pm73.eventos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class FilaDeEventosTest {
+
+	@Test
+	public void cadaAssinaturaDeveTerASuaPropriaSequencia() {
+
+		FilaDeEventos fila = new FilaDeEventos(8);
+		Assinatura rapida = fila.assina();
+		Assinatura lenta = fila.assina();
+
+		fila.publica(TipoDeEvento.LEILAO_CRIADO, 1);
+		fila.publica(TipoDeEvento.LANCE_ADICIONADO, 10);
+		fila.publica(TipoDeEvento.LEILAO_ENCERRADO, 1);
+
+		assertEquals(3, rapida.proximos(10).size());
+		assertTrue(rapida.proximos(10).isEmpty());
+
+		List<Evento> lote = lenta.proximos(2);
+		assertEquals(2, lote.size());
+		assertEquals(TipoDeEvento.LEILAO_CRIADO, lote.get(0).getTipo());
+		assertEquals(TipoDeEvento.LEILAO_ENCERRADO, lenta.proximos(2).get(0).getTipo());
+	}
+
+	@Test
+	public void deveReentregarAPartirDeUmaSequencia() {
+
+		FilaDeEventos fila = new FilaDeEventos(8);
+		fila.publica(TipoDeEvento.USUARIO_CRIADO, 1);
+		long segundo = fila.publica(TipoDeEvento.USUARIO_CRIADO, 2);
+		fila.publica(TipoDeEvento.USUARIO_CRIADO, 3);
+
+		List<Evento> reentregues = fila.assinaDesde(segundo).proximos(10);
+
+		assertEquals(2, reentregues.size());
+		assertEquals(2, reentregues.get(0).getId());
+	}
+
+	@Test
+	public void assinanteAtrasadoDevePularParaOMaisAntigoEContarOsPerdidos() {
+
+		FilaDeEventos fila = new FilaDeEventos(4);
+		Assinatura atrasada = fila.assina();
+		for (int i = 0; i < 10; i++) {
+			fila.publica(TipoDeEvento.LANCE_ADICIONADO, i);
+		}
+
+		List<Evento> lote = atrasada.proximos(10);
+
+		assertEquals(4, lote.size());
+		assertEquals(6, lote.get(0).getId());
+		assertEquals(6L, atrasada.getPerdidos());
+	}
+}
@@ -0,0 +1,146 @@
+package br.com.caelum.pm73.eventos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.MassaDeDados;
+import br.com.caelum.pm73.dao.UsuarioBuilder;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+public class PublicadorDeEventosTest {
+
+	private Session session;
+	private UsuarioDao usuarioDao;
+	private LeilaoDao leilaoDao;
+	private Assinatura assinatura;
+
+	@Before
+	public void antes() {
+		session = MassaDeDados.chamada("vazia", MassaDeDados.VAZIA).getSession();
+		usuarioDao = new UsuarioDao(session);
+		leilaoDao = new LeilaoDao(session);
+		assinatura = FilaDeEventos.de(session.getSessionFactory()).assina();
+		session.beginTransaction();
+	}
+
+	@After
+	public void depois() {
+		session.getTransaction().rollback();
+		session.close();
+	}
+
+	@Test
+	public void devePublicarEventosSomenteDepoisDoCommit() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		Leilao leilao = new LeilaoBuilder().comNome("Geladeira").comValor(1500.00).comDono(mauricio).constroi();
+
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(leilao);
+
+		assertTrue(assinatura.proximos(10).isEmpty());
+
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		assertEquals(Arrays.asList(TipoDeEvento.LEILAO_CRIADO), tiposDoLeilao(leilao, assinatura.proximos(10)));
+	}
+
+	@Test
+	public void deveDescartarEventosDeTransacaoDesfeita() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		Leilao leilao = new LeilaoBuilder().comNome("Geladeira").comValor(1500.00).comDono(mauricio).constroi();
+
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(leilao);
+
+		session.getTransaction().rollback();
+		session.beginTransaction();
+
+		assertTrue(assinatura.proximos(10).isEmpty());
+	}
+
+	@Test
+	public void devePublicarEncerramentoSomenteQuandoOLeilaoDeFatoEncerra() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		Leilao aberto = new LeilaoBuilder().comNome("Geladeira").comValor(1500.00).comDono(mauricio).constroi();
+		Leilao encerrado = new LeilaoBuilder().comNome("Xbox").comValor(700.00).comDono(mauricio).setEncerrado()
+				.constroi();
+
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(aberto);
+		leilaoDao.salvar(encerrado);
+		session.getTransaction().commit();
+		session.beginTransaction();
+		assinatura.proximos(10);
+
+		encerrado.setNome("Xbox 360");
+		leilaoDao.atualiza(encerrado);
+		assertEquals(0, leilaoDao.encerra(Arrays.asList(encerrado.getId()), Calendar.getInstance()));
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		assertEquals(Arrays.asList(TipoDeEvento.LEILAO_ATUALIZADO), tiposDoLeilao(encerrado, assinatura.proximos(10)));
+
+		aberto.encerra();
+		leilaoDao.atualiza(aberto);
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		assertEquals(Arrays.asList(TipoDeEvento.LEILAO_ATUALIZADO, TipoDeEvento.LEILAO_ENCERRADO),
+				tiposDoLeilao(aberto, assinatura.proximos(10)));
+	}
+
+	@Test
+	public void deveEncerrarEmLotePublicandoSoOsQueEstavamAbertos() {
+
+		Calendar vencido = Calendar.getInstance();
+		vencido.add(Calendar.MINUTE, -1);
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		Leilao aberto = new LeilaoBuilder().comNome("Geladeira").comValor(1500.00).comDono(mauricio)
+				.encerraEm(vencido).constroi();
+		Leilao encerrado = new LeilaoBuilder().comNome("Xbox").comValor(700.00).comDono(mauricio).setEncerrado()
+				.encerraEm(vencido).constroi();
+
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(aberto);
+		leilaoDao.salvar(encerrado);
+		session.getTransaction().commit();
+		session.beginTransaction();
+		assinatura.proximos(10);
+
+		assertEquals(1, leilaoDao.encerra(Arrays.asList(aberto.getId(), encerrado.getId()), Calendar.getInstance()));
+		session.getTransaction().commit();
+		session.beginTransaction();
+
+		List<Evento> eventos = assinatura.proximos(10);
+		assertEquals(Arrays.asList(TipoDeEvento.LEILAO_ENCERRADO), tiposDoLeilao(aberto, eventos));
+		assertTrue(tiposDoLeilao(encerrado, eventos).isEmpty());
+	}
+
+	private List<TipoDeEvento> tiposDoLeilao(Leilao leilao, List<Evento> eventos) {
+		List<TipoDeEvento> tipos = new ArrayList<TipoDeEvento>();
+		for (Evento evento : eventos) {
+			if (evento.getId() == leilao.getId() && evento.getTipo().name().startsWith("LEILAO_")) {
+				tipos.add(evento.getTipo());
+			}
+		}
+		return tipos;
+	}
+}
@@ -0,0 +1,139 @@
+package br.com.caelum.pm73.relatorio;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.MassaDeDados;
+import br.com.caelum.pm73.dao.UsuarioBuilder;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+public class MotorDeRelatoriosTest {
+
+	private Session session;
+	private UsuarioDao usuarioDao;
+	private LeilaoDao leilaoDao;
+
+	@Before
+	public void antes() {
+		session = MassaDeDados.chamada("vazia", MassaDeDados.VAZIA).getSession();
+		usuarioDao = new UsuarioDao(session);
+		leilaoDao = new LeilaoDao(session);
+		session.beginTransaction();
+	}
+
+	@After
+	public void depois() {
+		session.getTransaction().rollback();
+		session.close();
+	}
+
+	@Test
+	public void deveCalcularValorInicialMedioIgualAoDao() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		Usuario marcos = new UsuarioBuilder().comNome("Marcos").comEmail("marcos@marcos.com.br").constroi();
+
+		Leilao leilao1 = new LeilaoBuilder().comNome("Geladeira").comValor(1000.00).comDono(mauricio)
+				.comLance(Calendar.getInstance(), mauricio, 1000.0).comLance(Calendar.getInstance(), marcos, 1100.0)
+				.constroi();
+
+		Leilao leilao2 = new LeilaoBuilder().comNome("PS5").comValor(2000.00).comDono(mauricio)
+				.comLance(Calendar.getInstance(), mauricio, 3000.0).constroi();
+
+		usuarioDao.salvar(mauricio);
+		usuarioDao.salvar(marcos);
+		leilaoDao.salvar(leilao1);
+		leilaoDao.salvar(leilao2);
+		session.flush();
+
+		Map<Integer, Double> medias = MotorDeRelatorios.doBanco(leilaoDao).valorInicialMedioPorUsuario();
+
+		assertEquals(leilaoDao.getValorInicialMedioDoUsuario(mauricio), medias.get(mauricio.getId()), 0.00001);
+		assertEquals(leilaoDao.getValorInicialMedioDoUsuario(marcos), medias.get(marcos.getId()), 0.00001);
+	}
+
+	@Test
+	public void deveContarDisputadosComOMesmoCriterioDoDao() {
+
+		Usuario mauricio = new UsuarioBuilder().comNome("Mauricio").comEmail("mauricio@mauricio.com.br").constroi();
+		Usuario marcos = new UsuarioBuilder().comNome("Marcos").comEmail("marcos@marcos.com.br").constroi();
+
+		Leilao poucosLances = new LeilaoBuilder().comNome("Geladeira").comValor(1500.00).comDono(mauricio)
+				.comLance(Calendar.getInstance(), mauricio, 3000.0).comLance(Calendar.getInstance(), marcos, 4000.0)
+				.constroi();
+
+		Leilao disputado = new LeilaoBuilder().comNome("PS5").comValor(3000.00).comDono(mauricio)
+				.comLance(Calendar.getInstance(), mauricio, 3000.0).comLance(Calendar.getInstance(), marcos, 3100.0)
+				.comLance(Calendar.getInstance(), marcos, 3200.0).comLance(Calendar.getInstance(), mauricio, 3300.0)
+				.constroi();
+
+		Leilao encerrado = new LeilaoBuilder().comNome("Xbox").comValor(3000.00).comDono(mauricio).setEncerrado()
+				.comLance(Calendar.getInstance(), mauricio, 3000.0).comLance(Calendar.getInstance(), marcos, 3100.0)
+				.comLance(Calendar.getInstance(), marcos, 3200.0).comLance(Calendar.getInstance(), mauricio, 3300.0)
+				.constroi();
+
+		usuarioDao.salvar(mauricio);
+		usuarioDao.salvar(marcos);
+		leilaoDao.salvar(poucosLances);
+		leilaoDao.salvar(disputado);
+		leilaoDao.salvar(encerrado);
+		session.flush();
+
+		long disputados = MotorDeRelatorios.doBanco(leilaoDao).quantidadeDeDisputadosEntre(1000, 4000);
+
+		assertEquals(leilaoDao.disputadosEntre(1000, 4000).size(), disputados);
+		assertEquals(1L, disputados);
+	}
+
+	@Test
+	public void deveIgnorarValoresAusentesComoOBanco() {
+
+		List<LanceResumido> lances = new ArrayList<LanceResumido>();
+		for (int i = 0; i < 4; i++) {
+			lances.add(new LanceResumido(i, 1, 1, 9, 200.0, 100.0, 0L, false));
+			lances.add(new LanceResumido(10 + i, 2, i % 2 == 0 ? 1 : 2, 9, 200.0, Double.NaN, 0L, false));
+		}
+		lances.add(new LanceResumido(20, 1, null, 9, 300.0, 100.0, 0L, false));
+
+		MotorDeRelatorios motor = new MotorDeRelatorios(lances);
+		Map<Integer, Double> medias = motor.valorInicialMedioPorUsuario();
+
+		assertEquals(2, medias.size());
+		assertEquals(100.0, medias.get(1), 0.00001);
+		assertEquals(0.0, medias.get(2), 0.00001);
+		assertEquals(1L, motor.quantidadeDeDisputadosEntre(0, 1000));
+	}
+
+	@Test
+	public void deveCalcularEstatisticasPorFaixaEmParalelo() {
+
+		List<LanceResumido> lances = new ArrayList<LanceResumido>();
+		for (int i = 0; i < 50000; i++) {
+			lances.add(new LanceResumido(i, i % 10, i % 7, 1, i % 100, 100.0, 0L, false));
+		}
+
+		Map<Double, Estatistica> faixas = new MotorDeRelatorios(lances).agrega(Agrupamentos.porFaixaDeValor(50),
+				Medidas.VALOR_DO_LANCE);
+
+		assertEquals(2, faixas.size());
+		Estatistica primeira = faixas.get(0.0);
+		assertEquals(25000L, primeira.getQuantidade());
+		assertEquals(0.0, primeira.getMinimo(), 0.00001);
+		assertEquals(49.0, primeira.getMaximo(), 0.00001);
+		assertEquals(24.5, primeira.getMedia(), 0.00001);
+		assertEquals(24.0, primeira.percentil(50), 0.00001);
+	}
+}